@@ -0,0 +1,187 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the work the blocking server takes on: how many sessions it serves
+ * and how many file transfers run at once. A session or transfer over its
+ * limit waits in a bounded queue for up to the wait timeout; once the queue
+ * is full, or the wait runs out, it is turned away at once with a busy reply
+ * rather than left to pile up threads, buffers and disk traffic.
+ */
+public class AdmissionControl {
+	/* Clients or transfers that may wait for a slot unless configured */
+	protected static final int DEFAULT_QUEUE = 50;
+
+	/* Longest wait for a slot unless configured, in milliseconds */
+	protected static final long DEFAULT_WAIT = 5000;
+
+	/*
+	 * Connections the kernel may hold for accept. Kept well above the wait
+	 * queue: clients beyond it are dropped silently and hang until their
+	 * handshake is retried, whereas accepting them costs little and lets them
+	 * hear that the server is busy.
+	 */
+	private static final int MIN_BACKLOG = 256;
+
+	private static AdmissionControl shared;
+	private static int maxSessions;
+	private static int maxTransfers;
+	private static int queueLimit = DEFAULT_QUEUE;
+	private static long waitMillis = DEFAULT_WAIT;
+
+	/* Null where there is no limit */
+	private final Gate sessions;
+	private final Gate transfers;
+
+	/**
+	 * A counting limit with a bounded, timed wait for the next free slot.
+	 */
+	private static final class Gate {
+		private final Semaphore slots;
+		private final int queue;
+		private final long wait;
+		private final AtomicInteger waiting = new AtomicInteger();
+		private final LongAdder rejected = new LongAdder();
+
+		private Gate(final int limit, final int queue, final long wait) {
+			this.slots = new Semaphore(limit, true);
+			this.queue = queue;
+			this.wait = wait;
+		}
+
+		/**
+		 * Takes a slot, waiting in line for one if the queue has room.
+		 *
+		 * @return true if a slot was taken and must be given back
+		 */
+		private boolean enter() {
+			if (slots.tryAcquire()) {
+				return true;
+			}
+			boolean admitted = false;
+			if (waiting.incrementAndGet() <= queue) {
+				try {
+					admitted = slots.tryAcquire(wait, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			waiting.decrementAndGet();
+			if (!admitted) {
+				rejected.increment();
+			}
+			return admitted;
+		}
+
+		private void leave() {
+			slots.release();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	private AdmissionControl() {
+		sessions = maxSessions > 0 ? new Gate(maxSessions, queueLimit, waitMillis)
+				: null;
+		transfers = maxTransfers > 0
+				? new Gate(maxTransfers, queueLimit, waitMillis) : null;
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Sets the limits; must be called before the first {@link #shared}.
+	 *
+	 * @param sessionLimit
+	 *            sessions served at once, 0 for no limit
+	 * @param transferLimit
+	 *            file transfers run at once, 0 for no limit
+	 * @param queue
+	 *            sessions, and separately transfers, that may wait for a slot
+	 * @param wait
+	 *            longest wait for a slot in milliseconds
+	 */
+	protected static synchronized void configure(final int sessionLimit,
+			final int transferLimit, final int queue, final long wait) {
+		maxSessions = sessionLimit;
+		maxTransfers = transferLimit;
+		queueLimit = queue;
+		waitMillis = wait;
+	}
+
+	/**
+	 * @return the process-wide limits
+	 */
+	protected static synchronized AdmissionControl shared() {
+		if (shared == null) {
+			shared = new AdmissionControl();
+		}
+		return shared;
+	}
+
+	/**
+	 * @return listen backlog for the server socket
+	 */
+	protected static synchronized int backlog() {
+		return Math.max(MIN_BACKLOG, queueLimit);
+	}
+
+	/**
+	 * Admits a new session, waiting for another to end if need be.
+	 *
+	 * @return true if admitted; the session must then call
+	 *         {@link #sessionDone}
+	 */
+	protected boolean admitSession() {
+		return sessions == null || sessions.enter();
+	}
+
+	/**
+	 * Gives back the slot of a session admitted earlier.
+	 */
+	protected void sessionDone() {
+		if (sessions != null) {
+			sessions.leave();
+		}
+	}
+
+	/**
+	 * Admits a file transfer, waiting for another to finish if need be.
+	 *
+	 * @return true if admitted; the transfer must then call
+	 *         {@link #transferDone}
+	 */
+	protected boolean admitTransfer() {
+		return transfers == null || transfers.enter();
+	}
+
+	/**
+	 * Gives back the slot of a transfer admitted earlier.
+	 */
+	protected void transferDone() {
+		if (transfers != null) {
+			transfers.leave();
+		}
+	}
+
+	/**
+	 * @return sessions turned away since startup
+	 */
+	protected long rejectedSessions() {
+		return sessions == null ? 0 : sessions.rejected.sum();
+	}
+
+	/**
+	 * @return transfers turned away since startup
+	 */
+	protected long rejectedTransfers() {
+		return transfers == null ? 0 : transfers.rejected.sum();
+	}
+
+}
@@ -0,0 +1,156 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits the rate at which a session streams file data, on its own and
+ * together with every other session, using token buckets. Transfers smaller
+ * than the interactive threshold never wait: their bytes are still taken from
+ * the buckets, so bulk transfers make room for them, but they go out at once.
+ * That keeps small gets and puts quick under load while large ones share
+ * what bandwidth is left.
+ */
+public class BandwidthShaper {
+	/* Transfers below this many bytes are interactive unless configured */
+	protected static final long DEFAULT_INTERACTIVE = 1024 * 1024;
+
+	/* Bytes an idle bucket lets through at once: this fraction of a second's */
+	private static final long BURST_DIVISOR = 10;
+
+	private static TokenBucket global;
+	private static long sessionRate;
+	private static long interactiveLimit = DEFAULT_INTERACTIVE;
+
+	/* This session's bucket, null if sessions are not limited on their own */
+	private final TokenBucket session;
+	private final TokenBucket shared;
+	private final long interactive;
+
+	/* True while the current transfer is bulk and waits for tokens */
+	private boolean bulk;
+
+	/**
+	 * A token bucket kept as the time by which everything taken from it has
+	 * been paid for, so taking tokens is one compare-and-set and sessions
+	 * sharing a bucket never lock.
+	 */
+	protected static final class TokenBucket {
+		private final double nanosPerByte;
+		private final long burstNanos;
+		private final AtomicLong paidUntil = new AtomicLong(System.nanoTime());
+
+		/**
+		 * @param rate
+		 *            bytes per second
+		 */
+		protected TokenBucket(final long rate) {
+			nanosPerByte = 1e9 / rate;
+			burstNanos = (long) (Math.max(rate / BURST_DIVISOR,
+					FTPApplication.bufferSize) * nanosPerByte);
+		}
+
+		/**
+		 * Takes tokens for some bytes, going into debt if there are too few.
+		 *
+		 * @param bytes
+		 *            bytes about to be sent or received
+		 * @return nanoseconds to wait until the bytes are paid for, 0 or less
+		 *         if they may go at once
+		 */
+		protected long take(final int bytes) {
+			final long cost = (long) (bytes * nanosPerByte);
+			final long now = System.nanoTime();
+			long previous;
+			long next;
+			do {
+				previous = paidUntil.get();
+				// an idle bucket fills up to a burst's worth, no further
+				next = Math.max(previous, now - burstNanos) + cost;
+			} while (!paidUntil.compareAndSet(previous, next));
+			return next - now;
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	private BandwidthShaper(final TokenBucket session, final TokenBucket shared,
+			final long interactive) {
+		this.session = session;
+		this.shared = shared;
+		this.interactive = interactive;
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Sets the limits for sessions opened afterwards.
+	 *
+	 * @param serverRate
+	 *            bytes per second across all sessions, 0 for no limit
+	 * @param perSession
+	 *            bytes per second for each session, 0 for no limit
+	 * @param interactiveBelow
+	 *            transfers smaller than this are never held back
+	 */
+	protected static synchronized void configure(final long serverRate,
+			final long perSession, final long interactiveBelow) {
+		global = serverRate > 0 ? new TokenBucket(serverRate) : null;
+		sessionRate = Math.max(0, perSession);
+		interactiveLimit = interactiveBelow;
+	}
+
+	/**
+	 * Returns a shaper for a new session.
+	 *
+	 * @return the shaper, or null if no limit is configured
+	 */
+	protected static synchronized BandwidthShaper forSession() {
+		if (global == null && sessionRate == 0) {
+			return null;
+		}
+		return new BandwidthShaper(
+				sessionRate > 0 ? new TokenBucket(sessionRate) : null, global,
+				interactiveLimit);
+	}
+
+	/**
+	 * Classifies the transfer about to start by its size.
+	 *
+	 * @param length
+	 *            bytes of file data announced
+	 */
+	protected void begin(final long length) {
+		bulk = length >= interactive;
+	}
+
+	/**
+	 * Takes tokens for a chunk of the current transfer and, if it is bulk,
+	 * waits until both buckets have paid for it.
+	 *
+	 * @param bytes
+	 *            bytes about to be sent or received
+	 */
+	protected void acquire(final int bytes) {
+		long wait = 0;
+		if (session != null) {
+			wait = session.take(bytes);
+		}
+		if (shared != null) {
+			wait = Math.max(wait, shared.take(bytes));
+		}
+		if (!bulk) {
+			return;
+		}
+		final long deadline = System.nanoTime() + wait;
+		for (long left = wait; left > 0; left = deadline - System.nanoTime()) {
+			LockSupport.parkNanos(left);
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checksums of files sent whole, shared by every session in the process, so
+ * a file downloaded again can go out zero-copy with its trailer already
+ * known. Like {@link FileContentCache}, entries are keyed by canonical path
+ * and only trusted while the file's modification time and size still match.
+ */
+public class ChecksumCache {
+	/* Files remembered before the least recently sent is forgotten */
+	private static final int MAX_ENTRIES = 16 * 1024;
+
+	private static final ChecksumCache SHARED = new ChecksumCache();
+
+	/* Access-ordered and bounded, dropping the least recently used entry */
+	private final LinkedHashMap<String, Entry> entries =
+			new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+					return size() > MAX_ENTRIES;
+				}
+			};
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Checksum of one file version.
+	 */
+	private static final class Entry {
+		private final int checksum;
+		private final long modified;
+		private final long size;
+
+		private Entry(final int checksum, final long modified, final long size) {
+			this.checksum = checksum;
+			this.modified = modified;
+			this.size = size;
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * @return the process-wide cache
+	 */
+	protected static ChecksumCache shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns the checksum recorded for the file's current version.
+	 *
+	 * @param file
+	 *            the file about to be sent
+	 * @return its checksum, or null if unknown or the file changed since
+	 */
+	protected Integer get(final File file) {
+		final String key = key(file);
+		if (key == null) {
+			return null;
+		}
+		final Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry != null && entry.modified == file.lastModified()
+				&& entry.size == file.length()) {
+			hits.increment();
+			return entry.checksum;
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Records the checksum of the version of a file that was sent. Nothing is
+	 * recorded if the file has changed since, as when it was replaced during
+	 * a zero-copy send, since the checksum is of the old contents.
+	 *
+	 * @param file
+	 *            the file just sent
+	 * @param modified
+	 *            its modification time when the send began
+	 * @param size
+	 *            its length when the send began
+	 * @param checksum
+	 *            checksum of the contents sent
+	 */
+	protected void put(final File file, final long modified, final long size,
+			final int checksum) {
+		final String key = key(file);
+		if (key != null && file.lastModified() == modified
+				&& file.length() == size) {
+			final Entry entry = new Entry(checksum, modified, size);
+			synchronized (this) {
+				entries.put(key, entry);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the checksum of a file, e.g. after it was overwritten.
+	 *
+	 * @param file
+	 *            the changed file
+	 */
+	protected void invalidate(final File file) {
+		final String key = key(file);
+		if (key != null) {
+			synchronized (this) {
+				entries.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @return number of sends that found their checksum
+	 */
+	protected long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of whole-file sends that had to compute their checksum
+	 */
+	protected long misses() {
+		return misses.sum();
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * @return the file's canonical path, or null if it can't be resolved
+	 */
+	private static String key(final File file) {
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException ioe) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,693 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+/**
+ * Deduplicating storage for a file base. File contents are cut into
+ * content-defined chunks that are stored once each under their SHA-256 hash;
+ * the named file itself only holds a manifest listing its chunks. Chunks are
+ * reference counted and deleted when the last manifest using them is replaced
+ * and no download is still reading them. The counts are rebuilt from the
+ * manifests on startup, which also collects chunks orphaned by files removed
+ * behind the server's back.
+ */
+public class ChunkStore {
+	private static final Log log = Log.forContext("chunk store");
+
+	/* Directory inside the file base that holds the chunks */
+	protected static final String DIRECTORY = ".chunks";
+
+	/*
+	 * Chunk boundaries fall where the gear hash of the bytes so far has its
+	 * low bits clear, about every 64 KiB, but never before MIN_CHUNK or after
+	 * MAX_CHUNK bytes. Client and server must agree on all of these.
+	 */
+	protected static final int MIN_CHUNK = 16 * 1024;
+	protected static final int MAX_CHUNK = 256 * 1024;
+	private static final long BOUNDARY_MASK = (1L << 16) - 1;
+	private static final long[] GEAR = gearTable(0x5ec0f7bL);
+
+	private static final String HASH = "SHA-256";
+	protected static final int HASH_LENGTH = 32;
+
+	/* Leads every manifest, telling it apart from a plain file */
+	private static final byte[] MAGIC = "secFTP chunks 1\n"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	/* One store per canonical file base, shared across sessions */
+	private static final ConcurrentMap<String, ChunkStore> STORES =
+			new ConcurrentHashMap<>();
+	private static boolean enabled;
+
+	private final File base;
+	private final File directory;
+
+	/* Manifest entries referring to each chunk, by chunk name */
+	private final Map<String, Integer> references = new HashMap<>();
+
+	/* Chunks stored since they were last forced to disk, by chunk name */
+	private final Set<String> unsynced = new HashSet<>();
+
+	/* Forces chunks and manifests to disk before a commit is acknowledged */
+	private final GroupCommit commits = GroupCommit.shared();
+
+	/**
+	 * One chunk of a file: its hash, and where it sits in the file.
+	 */
+	protected static final class Chunk {
+		protected final byte[] hash;
+		protected final long offset;
+		protected final int length;
+
+		private Chunk(final byte[] hash, final long offset, final int length) {
+			this.hash = hash;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return the hash in hex, which names the chunk in the store
+		 */
+		protected String name() {
+			final StringBuilder name = new StringBuilder(HASH_LENGTH * 2);
+			for (final byte b : hash) {
+				name.append(Character.forDigit(b >> 4 & 0xf, 16))
+						.append(Character.forDigit(b & 0xf, 16));
+			}
+			return name.toString();
+		}
+	}
+
+	/**
+	 * The chunks of a stored file, readable as one positional source. Keeps
+	 * the chunk being read open until the next one is needed. A manifest
+	 * opened for reading holds a reference to each of its chunks until it is
+	 * closed, so replacing the file meanwhile cannot delete them.
+	 */
+	protected final class Manifest implements FTPApplication.ChunkSource, Closeable {
+		protected final long length;
+		protected final List<Chunk> chunks;
+		private FileChannel current;
+		private int currentIndex = -1;
+		private boolean pinned;
+
+		private Manifest(final long length, final List<Chunk> chunks) {
+			this.length = length;
+			this.chunks = chunks;
+		}
+
+		@Override
+		public int read(final ByteBuffer chunk, final long position)
+				throws IOException {
+			if (position >= length) {
+				return -1;
+			}
+			// the last chunk starting at or before position
+			int low = 0;
+			int high = chunks.size() - 1;
+			while (low < high) {
+				final int middle = (low + high + 1) >>> 1;
+				if (chunks.get(middle).offset <= position) {
+					low = middle;
+				} else {
+					high = middle - 1;
+				}
+			}
+			final Chunk source = chunks.get(low);
+			if (low != currentIndex) {
+				closeCurrent();
+				current = FileChannel.open(path(source.name()).toPath(),
+						StandardOpenOption.READ);
+				currentIndex = low;
+			}
+
+			final long within = position - source.offset;
+			final int limit = chunk.limit();
+			chunk.limit((int) Math.min(limit,
+					chunk.position() + (source.length - within)));
+			try {
+				return current.read(chunk, within);
+			} finally {
+				chunk.limit(limit);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				closeCurrent();
+			} finally {
+				if (pinned) {
+					pinned = false;
+					for (final Chunk chunk : chunks) {
+						release(chunk);
+					}
+				}
+			}
+		}
+
+		private void closeCurrent() throws IOException {
+			if (current != null) {
+				current.close();
+				current = null;
+				currentIndex = -1;
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Opens the store of a file base, recounting references from its
+	 * manifests and deleting chunks nothing refers to.
+	 *
+	 * @param base
+	 *            the file base
+	 */
+	private ChunkStore(final File base) {
+		this.base = base;
+		this.directory = new File(base, DIRECTORY);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			log.warn("Could not create %s", directory);
+		}
+
+		int files = 0;
+		final File[] entries = base.listFiles();
+		for (final File entry : entries != null ? entries : new File[0]) {
+			try {
+				final Manifest manifest = manifest(entry);
+				if (manifest != null) {
+					for (final Chunk chunk : manifest.chunks) {
+						references.merge(chunk.name(), 1, Integer::sum);
+					}
+					files++;
+				}
+			} catch (IOException ioe) {
+				log.warn("Unreadable manifest %s: %s", entry, ioe);
+			}
+		}
+
+		long bytes = 0;
+		try (Stream<Path> stored = Files.walk(directory.toPath())) {
+			for (final Path path : (Iterable<Path>) stored::iterator) {
+				if (Files.isRegularFile(path)) {
+					if (references.containsKey(path.getFileName().toString())) {
+						bytes += Files.size(path);
+					} else {
+						Files.delete(path);
+					}
+				}
+			}
+		} catch (IOException ioe) {
+			log.warn("Could not scan %s: %s", directory, ioe);
+		}
+		log.info("Chunk store %s: %d chunks, %d bytes, %d files",
+				directory, references.size(), bytes, files);
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Turns chunk storage on for every file base opened afterwards.
+	 */
+	protected static synchronized void configure(final boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * Returns the shared store of a file base, opening it on first use.
+	 *
+	 * @param fileBase
+	 *            canonical path of the file base
+	 * @return the store, or null if chunk storage is off
+	 */
+	protected static synchronized ChunkStore forDirectory(final String fileBase) {
+		return enabled ? STORES.computeIfAbsent(fileBase,
+				base -> new ChunkStore(new File(base))) : null;
+	}
+
+	/**
+	 * Returns the size of a file's contents, looking through manifests if
+	 * chunk storage is on.
+	 *
+	 * @param file
+	 *            a plain file or manifest
+	 * @return its contents' size in bytes
+	 */
+	protected static long contentLength(final File file) {
+		if (enabled && file.length() >= MAGIC.length + Long.BYTES) {
+			try (DataInputStream in = new DataInputStream(
+					Files.newInputStream(file.toPath()))) {
+				final byte[] magic = new byte[MAGIC.length];
+				in.readFully(magic);
+				if (Arrays.equals(magic, MAGIC)) {
+					return in.readLong();
+				}
+			} catch (IOException ioe) {
+				// fall back to the plain size
+			}
+		}
+		return file.length();
+	}
+
+	/**
+	 * Cuts a file into content-defined chunks and hashes each one.
+	 *
+	 * @param file
+	 *            the file to cut
+	 * @return its chunks in order
+	 * @throws IOException
+	 */
+	protected static List<Chunk> split(final File file) throws IOException {
+		final List<Chunk> chunks = new ArrayList<>();
+		final MessageDigest digest = hash();
+		final byte[] buffer = new byte[Math.max(FTPApplication.bufferSize, MIN_CHUNK)];
+		long offset = 0;
+		int size = 0;
+		long gear = 0;
+
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			for (int amt; (amt = in.read(buffer)) >= 0;) {
+				int start = 0;
+				for (int i = 0; i < amt; i++) {
+					gear = (gear << 1) + GEAR[buffer[i] & 0xff];
+					size++;
+					if (size >= MAX_CHUNK
+							|| size >= MIN_CHUNK && (gear & BOUNDARY_MASK) == 0) {
+						digest.update(buffer, start, i + 1 - start);
+						chunks.add(new Chunk(digest.digest(), offset, size));
+						offset += size;
+						size = 0;
+						gear = 0;
+						start = i + 1;
+					}
+				}
+				digest.update(buffer, start, amt - start);
+			}
+		}
+		if (size > 0) {
+			chunks.add(new Chunk(digest.digest(), offset, size));
+		}
+		return chunks;
+	}
+
+	/**
+	 * Encodes a chunk list as sent by a client and kept in manifests: total
+	 * length, chunk count, then hash and length of each chunk.
+	 *
+	 * @param chunks
+	 *            chunks in file order
+	 * @return the encoded list
+	 */
+	protected static byte[] describe(final List<Chunk> chunks) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			final Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+			out.writeLong(last == null ? 0 : last.offset + last.length);
+			out.writeInt(chunks.size());
+			for (final Chunk chunk : chunks) {
+				out.write(chunk.hash);
+				out.writeInt(chunk.length);
+			}
+		} catch (IOException ioe) {
+			// in-memory streams don't fail
+			throw new IllegalStateException(ioe);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes a chunk list encoded by {@link #describe}.
+	 *
+	 * @param description
+	 *            the encoded list
+	 * @return chunks in file order
+	 * @throws IOException
+	 *             if the list is malformed
+	 */
+	protected static List<Chunk> parse(final byte[] description) throws IOException {
+		return parse(new DataInputStream(new ByteArrayInputStream(description)));
+	}
+
+	/**
+	 * Reads a file's manifest.
+	 *
+	 * @param file
+	 *            the named file
+	 * @return its manifest, or null if it is a plain file
+	 * @throws IOException
+	 *             if the manifest is unreadable
+	 */
+	protected Manifest manifest(final File file) throws IOException {
+		if (!file.isFile() || file.length() < MAGIC.length + Long.BYTES) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(
+				Files.newInputStream(file.toPath()))) {
+			final byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				return null;
+			}
+			final List<Chunk> chunks = parse(in);
+			final Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+			return new Manifest(last == null ? 0 : last.offset + last.length, chunks);
+		}
+	}
+
+	/**
+	 * Reads a file's manifest for streaming its contents, taking a reference
+	 * to each of its chunks until the manifest is closed. Reading the
+	 * manifest and taking the references is atomic with respect to
+	 * {@link #commit}, so the chunks cannot be deleted in between.
+	 *
+	 * @param file
+	 *            the named file
+	 * @return its manifest, which the caller must close, or null if it is a
+	 *         plain file
+	 * @throws IOException
+	 *             if the manifest is unreadable or a chunk is missing
+	 */
+	protected synchronized Manifest open(final File file) throws IOException {
+		final Manifest manifest = manifest(file);
+		if (manifest == null) {
+			return null;
+		}
+		final List<Chunk> held = new ArrayList<>();
+		for (final Chunk chunk : manifest.chunks) {
+			if (!acquire(chunk)) {
+				for (final Chunk taken : held) {
+					release(taken);
+				}
+				throw new IOException("Chunk " + chunk.name() + " of " + file
+						+ " is missing");
+			}
+			held.add(chunk);
+		}
+		manifest.pinned = true;
+		return manifest;
+	}
+
+	/**
+	 * Takes a reference to a chunk if the store holds it.
+	 *
+	 * @param chunk
+	 *            the chunk wanted
+	 * @return true if the chunk is held and now referenced once more
+	 */
+	protected synchronized boolean acquire(final Chunk chunk) {
+		final String name = chunk.name();
+		if (!references.containsKey(name)) {
+			return false;
+		}
+		references.merge(name, 1, Integer::sum);
+		return true;
+	}
+
+	/**
+	 * Stores a chunk's contents, or takes a reference to the copy already
+	 * held, after checking them against its hash.
+	 *
+	 * @param chunk
+	 *            the chunk
+	 * @param data
+	 *            its contents
+	 * @throws IOException
+	 *             if the contents don't match or cannot be written
+	 */
+	protected void add(final Chunk chunk, final byte[] data) throws IOException {
+		if (data.length != chunk.length
+				|| !MessageDigest.isEqual(hash().digest(data), chunk.hash)) {
+			throw new IOException("Chunk " + chunk.name() + " does not match its hash");
+		}
+		final Path temporary = Files.createTempFile(directory.toPath(), "chunk", ".tmp");
+		try {
+			Files.write(temporary, data);
+			synchronized (this) {
+				final File target = path(chunk.name());
+				if (!references.containsKey(chunk.name())) {
+					if (!target.getParentFile().isDirectory()
+							&& !target.getParentFile().mkdirs()) {
+						throw new IOException("Could not create " + target.getParent());
+					}
+					move(temporary, target.toPath());
+					unsynced.add(chunk.name());
+				}
+				references.merge(chunk.name(), 1, Integer::sum);
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Drops a reference to a chunk, deleting it once neither a manifest nor
+	 * an open read refers to it.
+	 *
+	 * @param chunk
+	 *            the chunk
+	 */
+	protected synchronized void release(final Chunk chunk) {
+		final String name = chunk.name();
+		final Integer count = references.get(name);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			references.put(name, count - 1);
+		} else {
+			references.remove(name);
+			unsynced.remove(name);
+			final File stored = path(name);
+			if (!stored.delete() && stored.exists()) {
+				log.warn("Could not delete %s", stored);
+			}
+		}
+	}
+
+	/**
+	 * Points a name at a list of chunks the caller holds references to,
+	 * replacing the file or manifest there and releasing the chunks of the
+	 * manifest it replaces. Unless uploads are acknowledged without forcing
+	 * them, the chunks not yet on disk and the new manifest are forced
+	 * through the group commit before the rename, and the rename is forced
+	 * before the replaced chunks may be deleted, so a crash leaves the name
+	 * pointing at either the old or the new chunks, all of them intact.
+	 *
+	 * @param chunks
+	 *            chunks in file order, each referenced once by the caller
+	 * @param target
+	 *            the named file
+	 * @throws IOException
+	 *             if the manifest cannot be written; the references are then
+	 *             still the caller's
+	 */
+	protected void commit(final List<Chunk> chunks, final File target)
+			throws IOException {
+		final Path temporary = Files.createTempFile(directory.toPath(), "manifest",
+				".tmp");
+		Manifest previous = null;
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					Files.newOutputStream(temporary))) {
+				out.write(MAGIC);
+				out.write(describe(chunks));
+			}
+
+			// the caller's references keep these chunks from being deleted
+			final Set<String> forcing = new LinkedHashSet<>();
+			synchronized (this) {
+				for (final Chunk chunk : chunks) {
+					if (unsynced.contains(chunk.name())) {
+						forcing.add(chunk.name());
+					}
+				}
+			}
+			final List<Path> files = new ArrayList<>();
+			final Set<Path> directories = new LinkedHashSet<>();
+			for (final String name : forcing) {
+				final File stored = path(name);
+				files.add(stored.toPath());
+				directories.add(stored.getParentFile().toPath());
+			}
+			if (!directories.isEmpty()) {
+				// holds the fan-out directories, which may be new
+				directories.add(directory.toPath());
+			}
+			files.add(temporary);
+			commits.sync(files, directories);
+			synchronized (this) {
+				unsynced.removeAll(forcing);
+				try {
+					previous = manifest(target);
+				} catch (IOException ioe) {
+					log.warn("Unreadable manifest %s: %s", target, ioe);
+				}
+				move(temporary, target.toPath());
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+
+		try {
+			commits.sync(Collections.emptyList(), Collections.singletonList(
+					target.getAbsoluteFile().getParentFile().toPath()));
+		} catch (IOException ioe) {
+			// the name already points at the new chunks
+			log.warn("Could not force %s: %s", target, ioe);
+		}
+		if (previous != null) {
+			for (final Chunk chunk : previous.chunks) {
+				release(chunk);
+			}
+		}
+	}
+
+	/**
+	 * Moves a plain file into the store under the given name, storing only
+	 * the chunks the store does not hold yet.
+	 *
+	 * @param source
+	 *            the plain file, deleted once stored
+	 * @param target
+	 *            the named file
+	 * @throws IOException
+	 */
+	protected void ingest(final File source, final File target) throws IOException {
+		final List<Chunk> chunks = split(source);
+		final List<Chunk> held = new ArrayList<>();
+		boolean success = false;
+		try (FileChannel in = FileChannel.open(source.toPath(),
+				StandardOpenOption.READ)) {
+			for (final Chunk chunk : chunks) {
+				if (!acquire(chunk)) {
+					final ByteBuffer data = ByteBuffer.allocate(chunk.length);
+					while (data.hasRemaining()) {
+						if (in.read(data, chunk.offset + data.position()) < 0) {
+							throw new IOException(source + " shrank while storing");
+						}
+					}
+					add(chunk, data.array());
+				}
+				held.add(chunk);
+			}
+			commit(chunks, target);
+			success = true;
+		} finally {
+			if (!success) {
+				for (final Chunk chunk : held) {
+					release(chunk);
+				}
+			}
+		}
+		Files.delete(source.toPath());
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * @return where a chunk is stored, fanned out by its first two digits
+	 */
+	private File path(final String name) {
+		return new File(new File(directory, name.substring(0, 2)), name);
+	}
+
+	/**
+	 * Decodes a chunk list, checking that it adds up.
+	 */
+	private static List<Chunk> parse(final DataInputStream in) throws IOException {
+		final long length = in.readLong();
+		final int count = in.readInt();
+		if (length < 0 || count < 0 || count > length) {
+			throw new IOException("Invalid chunk list");
+		}
+		final List<Chunk> chunks = new ArrayList<>(count);
+		long offset = 0;
+		for (int i = 0; i < count; i++) {
+			final byte[] hash = new byte[HASH_LENGTH];
+			in.readFully(hash);
+			final int size = in.readInt();
+			if (size <= 0 || size > MAX_CHUNK) {
+				throw new IOException("Invalid chunk length " + size);
+			}
+			chunks.add(new Chunk(hash, offset, size));
+			offset += size;
+		}
+		if (offset != length) {
+			throw new IOException("Chunks add up to " + offset + ", not " + length);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Renames a file into place, atomically where the file system allows.
+	 */
+	private static void move(final Path source, final Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException amnse) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @return a fresh content hash
+	 */
+	private static MessageDigest hash() {
+		try {
+			return MessageDigest.getInstance(HASH);
+		} catch (NoSuchAlgorithmException nsae) {
+			// every Java platform has to provide it
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	/**
+	 * @return 256 pseudo-random values for the gear hash; java.util.Random is
+	 *         specified exactly, so every client and server gets the same
+	 */
+	private static long[] gearTable(final long seed) {
+		final Random random = new Random(seed);
+		final long[] table = new long[256];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = random.nextLong();
+		}
+		return table;
+	}
+
+}
@@ -0,0 +1,260 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A command line split into words where it lies, in the buffer it was
+ * received into. Words are only turned into Strings when a handler asks for
+ * one; the command word is matched and numbers are parsed straight from the
+ * bytes. A session keeps one line and its buffer for every command it
+ * receives, so parsing a steady stream of commands allocates nothing. Words
+ * are read in order, like a StringTokenizer's, and are separated by the same
+ * whitespace.
+ */
+public class CommandLine {
+	/* Longest command line accepted from a peer */
+	protected static final int MAX_LENGTH = 64 * 1024;
+
+	private static final int INITIAL_LENGTH = 256;
+	private static final int INITIAL_WORDS = 8;
+
+	/* Digits that always fit a long, so shorter numbers need no overflow check */
+	private static final int SAFE_DIGITS = 18;
+
+	/* Receive buffer owned by this line, grown to the longest line seen */
+	private byte[] buffer = new byte[INITIAL_LENGTH];
+
+	/* The line being read and the bounds of each of its words */
+	private byte[] bytes = buffer;
+	private int[] starts = new int[INITIAL_WORDS];
+	private int[] ends = new int[INITIAL_WORDS];
+	private int words;
+	private int next;
+
+	/* Registered name of the command word, once a CommandTable matched it */
+	private String command;
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Splits a typed line, e.g. one read from the console.
+	 *
+	 * @param line
+	 *            the command line
+	 * @return a new line holding its words
+	 */
+	protected static CommandLine of(final String line) {
+		final byte[] typed = line.getBytes(StandardCharsets.UTF_8);
+		return new CommandLine().parse(typed, 0, typed.length);
+	}
+
+	/**
+	 * Returns this line's receive buffer, grown to hold at least length bytes.
+	 *
+	 * @param length
+	 *            bytes about to be received
+	 * @return the buffer
+	 * @throws IllegalArgumentException
+	 *             if the line would be longer than MAX_LENGTH
+	 */
+	protected byte[] buffer(final int length) {
+		if (length > MAX_LENGTH) {
+			throw new IllegalArgumentException("Command line of " + length
+					+ " bytes exceeds " + MAX_LENGTH);
+		}
+		if (buffer.length < length) {
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Splits a line into words, forgetting the previous line.
+	 *
+	 * @param line
+	 *            holds the line; kept, not copied
+	 * @param offset
+	 *            position of the line's first byte
+	 * @param length
+	 *            length of the line in bytes
+	 * @return this line
+	 */
+	protected CommandLine parse(final byte[] line, final int offset,
+			final int length) {
+		bytes = line;
+		words = 0;
+		next = 0;
+		command = null;
+		final int end = offset + length;
+		int position = offset;
+		while (position < end) {
+			while (position < end && isSpace(line[position])) {
+				position++;
+			}
+			if (position == end) {
+				break;
+			}
+			if (words == starts.length) {
+				starts = Arrays.copyOf(starts, words * 2);
+				ends = Arrays.copyOf(ends, words * 2);
+			}
+			starts[words] = position;
+			while (position < end && !isSpace(line[position])) {
+				position++;
+			}
+			ends[words++] = position;
+		}
+		return this;
+	}
+
+	/**
+	 * @return true if a word is left to read
+	 */
+	protected boolean hasMoreTokens() {
+		return next < words;
+	}
+
+	/**
+	 * @return number of words left to read
+	 */
+	protected int countTokens() {
+		return words - next;
+	}
+
+	/**
+	 * Reads the next word as a String.
+	 *
+	 * @return the word
+	 * @throws NoSuchElementException
+	 *             if no word is left
+	 */
+	protected String nextToken() {
+		if (next == words) {
+			throw new NoSuchElementException();
+		}
+		final int start = starts[next];
+		return new String(bytes, start, ends[next++] - start,
+				StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads the next word as a decimal number, without building a String
+	 * unless the number is too long to parse in place.
+	 *
+	 * @return the number
+	 * @throws NoSuchElementException
+	 *             if no word is left
+	 * @throws NumberFormatException
+	 *             if the word is not a number; it is consumed all the same
+	 */
+	protected long nextLong() {
+		if (next == words) {
+			throw new NoSuchElementException();
+		}
+		final int start = starts[next];
+		final int end = ends[next];
+		final boolean signed = bytes[start] == '-' || bytes[start] == '+';
+		final int digits = end - start - (signed ? 1 : 0);
+		if (digits == 0 || digits > SAFE_DIGITS) {
+			return Long.parseLong(nextToken());
+		}
+		long value = 0;
+		for (int i = signed ? start + 1 : start; i < end; i++) {
+			final int digit = bytes[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return Long.parseLong(nextToken());
+			}
+			value = value * 10 + digit;
+		}
+		next++;
+		return bytes[start] == '-' ? -value : value;
+	}
+
+	/**
+	 * @return the registered name of the command this line was dispatched
+	 *         to, or null if none matched
+	 */
+	protected String command() {
+		return command;
+	}
+
+	/**
+	 * Hashes the next word as a CommandTable does, ignoring ASCII case.
+	 *
+	 * @return the hash, 0 if no word is left
+	 */
+	protected int hashNext() {
+		int hash = 0;
+		if (next < words) {
+			for (int i = starts[next]; i < ends[next]; i++) {
+				hash = 31 * hash + toLowerCase(bytes[i]);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Hashes a command name the way {@link #hashNext} hashes a word.
+	 *
+	 * @param name
+	 *            an ASCII command name
+	 * @return the hash
+	 */
+	protected static int hash(final String name) {
+		int hash = 0;
+		for (int i = 0; i < name.length(); i++) {
+			hash = 31 * hash + toLowerCase((byte) name.charAt(i));
+		}
+		return hash;
+	}
+
+	/**
+	 * Consumes the next word if it is the given command, ignoring ASCII case,
+	 * and remembers the command's name.
+	 *
+	 * @param name
+	 *            an ASCII command name, in lower case
+	 * @return true if the word matched
+	 */
+	protected boolean matchCommand(final String name) {
+		if (next == words || ends[next] - starts[next] != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (toLowerCase(bytes[starts[next] + i]) != name.charAt(i)) {
+				return false;
+			}
+		}
+		next++;
+		command = name;
+		return true;
+	}
+
+	/**
+	 * @return the whole line, e.g. for logging
+	 */
+	@Override
+	public String toString() {
+		return words == 0 ? ""
+				: new String(bytes, starts[0], ends[words - 1] - starts[0],
+						StandardCharsets.UTF_8);
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * @return true for the characters a StringTokenizer splits on by default
+	 */
+	private static boolean isSpace(final byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+	}
+
+	private static int toLowerCase(final byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+}
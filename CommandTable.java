@@ -0,0 +1,102 @@
+import java.util.Locale;
+
+/**
+ * Maps command names to their handlers. A received line's command word is
+ * looked up straight from its bytes, hashed and compared without regard to
+ * ASCII case, in an open-addressed table, so dispatch costs a probe or two
+ * rather than a comparison per known command, and builds no String. New
+ * commands plug in by registering a handler under their name.
+ *
+ * @param <H>
+ *            handler type, e.g. a method of the session running the command
+ */
+public class CommandTable<H> {
+	private static final int INITIAL_SLOTS = 32;
+
+	/* Slots by hash; a table is kept at most half full */
+	private String[] names = new String[INITIAL_SLOTS];
+	private Object[] handlers = new Object[INITIAL_SLOTS];
+	private int size;
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Registers a handler, replacing any registered under the same name.
+	 *
+	 * @param name
+	 *            the command word, ASCII, matched without regard to case
+	 * @param handler
+	 *            runs the command
+	 * @return this table, so registrations can be chained
+	 */
+	protected CommandTable<H> register(final String name, final H handler) {
+		if (2 * (size + 1) > names.length) {
+			resize(names.length * 2);
+		}
+		insert(name.toLowerCase(Locale.ROOT), handler);
+		return this;
+	}
+
+	/**
+	 * Finds the handler of a line's command word. If there is one, the word
+	 * is consumed and {@link CommandLine#command} names the command.
+	 *
+	 * @param line
+	 *            a line whose next word is the command
+	 * @return the handler, or null if the command is unknown
+	 */
+	@SuppressWarnings("unchecked")
+	protected H lookup(final CommandLine line) {
+		if (!line.hasMoreTokens()) {
+			return null;
+		}
+		final int mask = names.length - 1;
+		for (int slot = spread(line.hashNext()) & mask; names[slot] != null;
+				slot = (slot + 1) & mask) {
+			if (line.matchCommand(names[slot])) {
+				return (H) handlers[slot];
+			}
+		}
+		return null;
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	private void insert(final String name, final Object handler) {
+		final int mask = names.length - 1;
+		int slot = spread(CommandLine.hash(name)) & mask;
+		while (names[slot] != null && !names[slot].equals(name)) {
+			slot = (slot + 1) & mask;
+		}
+		if (names[slot] == null) {
+			size++;
+		}
+		names[slot] = name;
+		handlers[slot] = handler;
+	}
+
+	private void resize(final int slots) {
+		final String[] oldNames = names;
+		final Object[] oldHandlers = handlers;
+		names = new String[slots];
+		handlers = new Object[slots];
+		size = 0;
+		for (int i = 0; i < oldNames.length; i++) {
+			if (oldNames[i] != null) {
+				insert(oldNames[i], oldHandlers[i]);
+			}
+		}
+	}
+
+	/**
+	 * Mixes the high bits of a hash into the low ones the table indexes by.
+	 */
+	private static int spread(final int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+}
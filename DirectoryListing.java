@@ -0,0 +1,304 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An in-memory listing of a file base, shared by every session serving it.
+ * The directory is scanned once; afterwards a WatchService keeps the listing
+ * current by re-examining only the entries that changed.
+ */
+public class DirectoryListing {
+	private static final Log log = Log.forContext("listing");
+
+	/* Page size bounds for the batched listing */
+	protected static final int DEFAULT_PAGE = 1000;
+	protected static final int MAX_PAGE = 10000;
+
+	/* One listing per canonical file base, shared across sessions */
+	private static final ConcurrentMap<String, DirectoryListing> LISTINGS =
+			new ConcurrentHashMap<>();
+
+	private final File directory;
+	private final ConcurrentNavigableMap<String, Entry> entries =
+			new ConcurrentSkipListMap<>();
+
+	/* Immutable view handed to readers; null after a change */
+	private volatile Entry[] snapshot;
+
+	/* False if the directory can't be watched, forcing a rescan per call */
+	private final boolean watched;
+
+	/**
+	 * Name, size and modification time of one directory entry.
+	 */
+	protected static final class Entry {
+		protected final String name;
+		protected final long size;
+		protected final long modified;
+
+		private Entry(final String name, final long size, final long modified) {
+			this.name = name;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Scans the directory and starts watching it.
+	 *
+	 * @param directory
+	 *            the file base to list
+	 */
+	private DirectoryListing(final File directory) {
+		this.directory = directory;
+		boolean watching = false;
+		try {
+			final WatchService watcher = FileSystems.getDefault().newWatchService();
+			directory.toPath().register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			final Thread thread = new Thread(() -> watch(watcher),
+					"listing-watcher " + directory);
+			thread.setDaemon(true);
+			thread.start();
+			watching = true;
+		} catch (IOException | UnsupportedOperationException e) {
+			log.warn("Not watching %s, listings will rescan: %s",
+					directory, e);
+		}
+		this.watched = watching;
+		rescan();
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Returns the shared listing of a file base, creating it on first use.
+	 *
+	 * @param fileBase
+	 *            canonical path of the file base
+	 * @return the listing
+	 */
+	protected static DirectoryListing forDirectory(final String fileBase) {
+		return LISTINGS.computeIfAbsent(fileBase,
+				base -> new DirectoryListing(new File(base)));
+	}
+
+	/**
+	 * Returns the current entries in name order.
+	 *
+	 * @return entries, or null if the file base is not a readable directory
+	 */
+	protected Entry[] entries() {
+		if (!watched) {
+			rescan();
+		}
+		final Entry[] current = snapshot;
+		return current != null ? current : buildSnapshot();
+	}
+
+	/**
+	 * Encodes one page of matching entries as a single frame: entry count
+	 * (ERROR if the file base is unreadable), offset of the next page (-1 on
+	 * the last page), then name, size and modification time of each entry.
+	 *
+	 * @param pattern
+	 *            glob the names must match; its literal head narrows the scan
+	 * @param offset
+	 *            number of matching entries to skip
+	 * @param limit
+	 *            maximum number of entries to return, capped at MAX_PAGE
+	 * @return the encoded page
+	 */
+	protected byte[] page(final String pattern, final int offset, final int limit) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			if (!watched) {
+				rescan();
+			}
+			PathMatcher matcher = null;
+			try {
+				matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+			} catch (IllegalArgumentException iae) {
+				log.warn("Invalid pattern %s: %s", pattern, iae);
+			}
+			if (matcher == null || !directory.isDirectory()) {
+				out.writeInt(FTPApplication.ERROR);
+				out.writeLong(-1);
+				return bytes.toByteArray();
+			}
+
+			final String prefix = literalPrefix(pattern);
+			final int pageSize = Math.max(0, Math.min(limit, MAX_PAGE));
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			final DataOutputStream entryOut = new DataOutputStream(body);
+			int skipped = 0;
+			int count = 0;
+			long next = -1;
+
+			for (final Entry entry : entries.subMap(prefix, true,
+					prefix + Character.MAX_VALUE, false).values()) {
+				if (!matcher.matches(Paths.get(entry.name))) {
+					continue;
+				}
+				if (skipped < offset) {
+					skipped++;
+				} else if (count < pageSize) {
+					entryOut.writeUTF(entry.name);
+					entryOut.writeLong(entry.size);
+					entryOut.writeLong(entry.modified);
+					count++;
+				} else {
+					next = (long) offset + count;
+					break;
+				}
+			}
+
+			out.writeInt(count);
+			out.writeLong(next);
+			body.writeTo(out);
+		} catch (IOException ioe) {
+			// in-memory streams don't fail
+			throw new IllegalStateException(ioe);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Re-examines one entry right away, so a session sees its own upload
+	 * without waiting for the watcher.
+	 *
+	 * @param name
+	 *            file name relative to the file base
+	 */
+	protected void refresh(final String name) {
+		if (name != null) {
+			update(new File(directory, name));
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Returns the part of a glob before its first special character.
+	 *
+	 * @param pattern
+	 *            a glob
+	 * @return the literal head, possibly empty
+	 */
+	private static String literalPrefix(final String pattern) {
+		for (int i = 0; i < pattern.length(); i++) {
+			if ("*?[{\\".indexOf(pattern.charAt(i)) >= 0) {
+				return pattern.substring(0, i);
+			}
+		}
+		return pattern;
+	}
+
+	/**
+	 * Builds the reader snapshot. Synchronized with the writers so a snapshot
+	 * taken during a change can't outlive it.
+	 *
+	 * @return entries, or null if the file base is not a readable directory
+	 */
+	private synchronized Entry[] buildSnapshot() {
+		if (snapshot == null && directory.isDirectory()) {
+			snapshot = entries.values().toArray(new Entry[0]);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Brings the listing in line with a full directory scan.
+	 */
+	private synchronized void rescan() {
+		final File[] files = directory.listFiles();
+		final Set<String> present = new HashSet<>();
+		if (files != null) {
+			for (final File file : files) {
+				if (!file.getName().equals(ChunkStore.DIRECTORY)) {
+					present.add(file.getName());
+					entries.put(file.getName(), new Entry(file.getName(),
+							ChunkStore.contentLength(file), file.lastModified()));
+				}
+			}
+		}
+		entries.keySet().retainAll(present);
+		snapshot = null;
+	}
+
+	/**
+	 * Adds, updates or removes the entry for one file.
+	 *
+	 * @param file
+	 *            the changed file
+	 */
+	private synchronized void update(final File file) {
+		if (file.getName().equals(ChunkStore.DIRECTORY)) {
+			return;
+		}
+		final long modified = file.lastModified();
+		if (modified == 0L && !file.exists()) {
+			entries.remove(file.getName());
+		} else {
+			entries.put(file.getName(), new Entry(file.getName(),
+					ChunkStore.contentLength(file), modified));
+		}
+		snapshot = null;
+	}
+
+	/**
+	 * Applies watch events to the listing until the watcher is closed.
+	 *
+	 * @param watcher
+	 *            service registered on the directory
+	 */
+	private void watch(final WatchService watcher) {
+		try {
+			while (true) {
+				final WatchKey key = watcher.take();
+				for (final WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						rescan();
+					} else {
+						final Path name = (Path) event.context();
+						update(new File(directory, name.toString()));
+					}
+				}
+				if (!key.reset()) {
+					// the directory itself went away
+					rescan();
+					break;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
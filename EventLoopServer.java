@@ -0,0 +1,1137 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A non-blocking alternative to the thread-per-session engine. A small fixed
+ * set of event loops, each owning a Selector, multiplexes every connection.
+ * Each connection is a state machine speaking the same protocol as
+ * ServerSession, so idle clients cost a few kilobytes instead of a thread.
+ */
+public class EventLoopServer {
+	/* Largest control message accepted from a client */
+	private static final int MAX_MESSAGE = CommandLine.MAX_LENGTH;
+	private static final int INITIAL_INPUT = 1024;
+
+	/* File bytes encoded per step in text framing; a byte takes <= 5 chars */
+	private static final int TEXT_CHUNK = 4096;
+
+	/* How often loops wake up to expire idle connections, in ms */
+	private static final long SELECT_TIMEOUT = 1000;
+
+	/* Pause after a failed accept, doubled while failures persist, in ms */
+	private static final long ACCEPT_BACKOFF = 5;
+	private static final long MAX_ACCEPT_BACKOFF = 200;
+
+	/* Least time between repeated accept failure warnings, in ms */
+	private static final long ACCEPT_WARN_INTERVAL = 10000;
+
+	private static final Log log = Log.forContext("server");
+
+	/* Numbers connections for their log context, like ServerSession's */
+	private static final AtomicLong SESSIONS = new AtomicLong();
+
+	/**
+	 * Runs one command on a connection, queueing its reply.
+	 */
+	private interface Handler {
+		/**
+		 * @return true if the client should be prompted for its next command
+		 *         now, false if the command prompts later or ends the session
+		 */
+		boolean run(Connection connection, CommandLine args) throws IOException;
+	}
+
+	/* The commands this engine serves */
+	private static final CommandTable<Handler> COMMANDS = new CommandTable<Handler>()
+			.register(FTPApplication.PUT, (connection, args) -> {
+				connection.startUpload(args.hasMoreTokens() ? args.nextToken() : null);
+				return false;
+			})
+			.register(FTPApplication.GET, (connection, args) -> {
+				connection.startDownload(args.hasMoreTokens() ? args.nextToken() : null);
+				return true;
+			})
+			.register(FTPApplication.LS, (connection, args) -> {
+				connection.list();
+				return true;
+			})
+			.register(FTPApplication.LIST, (connection, args) -> {
+				connection.listPage(args);
+				return true;
+			})
+			.register(FTPApplication.EXIT, (connection, args) -> {
+				connection.close();
+				return false;
+			})
+			.register(FTPApplication.HELLO, (connection, args) -> {
+				connection.hello(args);
+				return true;
+			});
+
+	protected final int port;
+	protected final String fileBase;
+	protected final int loopCount;
+	protected boolean allowBinary = true;
+
+	private final EventLoop[] loops;
+	private final DirectoryListing listing;
+	private final FileContentCache contentCache = FileContentCache.shared();
+
+	/* Session and byte counters, shared with the blocking engine's */
+	private final ServerMetrics metrics = ServerMetrics.shared();
+
+	/* Forces completed uploads to disk off the event loops */
+	private final GroupCommit commits = GroupCommit.shared();
+	private volatile ServerSocketChannel serverChannel;
+	private volatile boolean running;
+
+	/* Accept failure backoff, touched only by the accepting thread */
+	private long acceptBackoff = ACCEPT_BACKOFF;
+	private long lastAcceptWarning;
+	private long unreportedAcceptFailures;
+
+	/* Connection parser states */
+	private enum State {
+		COMMAND, PUT_HEADER, PUT_DATA, COMMIT, CLOSED
+	}
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param port
+	 *            Port which the server will listen on.
+	 * @param fileBase
+	 *            The path to the directory from which files will be served
+	 * @param loopCount
+	 *            Number of event-loop threads
+	 */
+	protected EventLoopServer(final int port, final String fileBase,
+			final int loopCount) {
+		String base;
+		try {
+			base = new File(fileBase).getCanonicalPath() + File.separator;
+		} catch (IOException ioe) {
+			base = "";
+			log.warn("Could not access %s: %s", fileBase, ioe);
+		}
+		this.port = port;
+		this.fileBase = base;
+		this.loopCount = Math.max(1, loopCount);
+		this.loops = new EventLoop[this.loopCount];
+		this.listing = DirectoryListing.forDirectory(base);
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Starts the event loops, then accepts clients on the calling thread and
+	 * hands them to the loops round-robin until shut down.
+	 */
+	protected void acceptClients() {
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port),
+					AdmissionControl.backlog());
+			running = true;
+			log.info("Bound to %s:%s", InetAddress.getLocalHost(),
+					serverChannel.socket().getLocalPort());
+
+			for (int i = 0; i < loopCount; i++) {
+				loops[i] = new EventLoop();
+				final Thread thread = new Thread(loops[i], "event-loop-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			log.info("Serving files out of %s with %d event loops.", fileBase,
+					loopCount);
+
+			int next = 0;
+			while (running) {
+				final SocketChannel client;
+				try {
+					client = serverChannel.accept();
+				} catch (IOException ioe) {
+					if (running) {
+						backOff(ioe);
+						continue;
+					}
+					break;
+				}
+				acceptBackoff = ACCEPT_BACKOFF;
+				loops[next].register(client);
+				next = (next + 1) % loopCount;
+			}
+
+		} catch (IOException e) {
+			log.error("%s Error with listening", e);
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Stops accepting clients and closes every connection.
+	 */
+	protected void shutdown() {
+		running = false;
+		try {
+			if (serverChannel != null) {
+				serverChannel.close();
+			}
+		} catch (IOException ioe) {
+			log.warn("Error closing listener: %s", ioe);
+		}
+		for (final EventLoop loop : loops) {
+			if (loop != null) {
+				loop.selector.wakeup();
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// EVENT LOOP
+	// ----------------------------------------------------------------------
+
+	/**
+	 * One selector thread and the connections assigned to it.
+	 */
+	private final class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+		/* Work handed back to this loop by other threads */
+		private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+
+		/* Shared by every connection on this loop for file payloads */
+		private final ByteBuffer transferBuffer = ByteBuffer
+				.allocateDirect(FTPApplication.bufferSize);
+
+		/* When idle connections are next looked for */
+		private long nextExpiry;
+
+		private EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Queues an accepted channel for registration on this loop.
+		 *
+		 * @param client
+		 *            newly accepted channel
+		 */
+		private void register(final SocketChannel client) {
+			pending.add(client);
+			selector.wakeup();
+		}
+
+		/**
+		 * Queues work to run on this loop's thread.
+		 *
+		 * @param task
+		 *            runs between selects
+		 */
+		private void execute(final Runnable task) {
+			completions.add(task);
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select(SELECT_TIMEOUT);
+					registerPending();
+					Runnable task;
+					while ((task = completions.poll()) != null) {
+						task.run();
+					}
+
+					final Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						final SelectionKey key = keys.next();
+						keys.remove();
+						final Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								connection.onReadable();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+						} catch (IOException | RuntimeException e) {
+							connection.log.warn("Closing: %s", e);
+							connection.close();
+						}
+					}
+					expireIdle();
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				log.error("Event loop failed: %s", e);
+			} finally {
+				for (final SelectionKey key : selector.keys()) {
+					((Connection) key.attachment()).close();
+				}
+				try {
+					selector.close();
+				} catch (IOException ioe) {
+					log.warn("Error closing selector: %s", ioe);
+				}
+			}
+		}
+
+		/**
+		 * Registers queued channels and greets their clients.
+		 */
+		private void registerPending() {
+			SocketChannel client;
+			while ((client = pending.poll()) != null) {
+				Connection connection = null;
+				try {
+					client.configureBlocking(false);
+					client.socket().setTcpNoDelay(true);
+					connection = new Connection(this, client);
+					connection.key = client.register(selector,
+							SelectionKey.OP_READ, connection);
+					connection.log.info("Session opened.");
+					connection.sendMessage(ServerSession.PROMPT);
+					connection.flush();
+				} catch (IOException ioe) {
+					log.warn("Could not register %s: %s", client, ioe);
+					if (connection != null) {
+						connection.close();
+						continue;
+					}
+					try {
+						client.close();
+					} catch (IOException closeError) {
+						log.warn("Error closing %s: %s", client, closeError);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Closes connections that have been silent for longer than the blocking
+		 * engine's socket timeout. Busy loops wake up far more often than that
+		 * matters, so the connections are only walked once per select timeout.
+		 */
+		private void expireIdle() {
+			final long now = System.currentTimeMillis();
+			if (now < nextExpiry) {
+				return;
+			}
+			nextExpiry = now + SELECT_TIMEOUT;
+			final long deadline = now - FTPApplication.SOCKET_TIMEOUT;
+			for (final SelectionKey key : selector.keys()) {
+				final Connection connection = (Connection) key.attachment();
+				if (connection.lastActive < deadline) {
+					connection.log.info("Timing out.");
+					connection.close();
+				}
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// CONNECTION STATE MACHINE
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Per-client protocol state. Only ever touched by its event loop thread.
+	 */
+	private final class Connection {
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private State state = State.COMMAND;
+		private boolean binary;
+		private long lastActive = System.currentTimeMillis();
+
+		/* Messages tagged with this connection's number and client address */
+		private final Log log;
+
+		/* Unparsed input, kept in write mode between reads */
+		private ByteBuffer in = ByteBuffer.allocate(INITIAL_INPUT);
+
+		/* Pending output: ByteBuffers and FileSends, in wire order */
+		private final ArrayDeque<Object> out = new ArrayDeque<>();
+
+		/* The command being run, split in place in the input or textFrame */
+		private final CommandLine line = new CommandLine();
+
+		/* Text framing decode state for a partially received message */
+		private byte[] textFrame;
+		private int textLength;
+		private int textIndex;
+
+		/* Upload in progress */
+		private String uploadName;
+		private FileChannel upload;
+		private IOException uploadFailure;
+		private long uploadRemaining;
+
+		private Connection(final EventLoop loop, final SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+			this.log = Log.forContext("session " + SESSIONS.incrementAndGet() + " "
+					+ channel.socket().getRemoteSocketAddress());
+			metrics.sessionOpened();
+		}
+
+		/**
+		 * Reads whatever the socket has and advances the state machine.
+		 */
+		private void onReadable() throws IOException {
+			if (state == State.PUT_DATA && binary && in.position() == 0) {
+				readUploadDirect();
+			} else {
+				if (!in.hasRemaining()) {
+					growInput();
+				}
+				if (channel.read(in) < 0) {
+					close();
+					return;
+				}
+				lastActive = System.currentTimeMillis();
+			}
+			process();
+			flush();
+		}
+
+		/**
+		 * Parses as many complete requests from the input as possible. Parsing
+		 * pauses while a download is still being written.
+		 */
+		private void process() throws IOException {
+			in.flip();
+			try {
+				boolean progress = true;
+				while (progress && state != State.CLOSED && !sendingFile()) {
+					switch (state) {
+					case COMMAND:
+						progress = decodeCommand();
+						if (progress) {
+							dispatch();
+						}
+						break;
+					case PUT_HEADER:
+						final long length = decodeLength();
+						progress = length >= 0;
+						if (progress) {
+							uploadRemaining = length;
+							metrics.received(length);
+							state = State.PUT_DATA;
+						}
+						break;
+					case PUT_DATA:
+						progress = consumeUpload();
+						break;
+					default:
+						progress = false;
+						break;
+					}
+				}
+			} finally {
+				if (state != State.CLOSED) {
+					in.compact();
+				}
+			}
+		}
+
+		/**
+		 * Executes the decoded command line, queueing its reply. Unknown
+		 * commands are answered with a fresh prompt.
+		 */
+		private void dispatch() throws IOException {
+			final Handler handler = COMMANDS.lookup(line);
+			if (handler == null || handler.run(this, line)) {
+				sendMessage(ServerSession.PROMPT);
+			}
+		}
+
+		/**
+		 * Answers a framing negotiation like ServerSession.handleHello.
+		 */
+		private void hello(final CommandLine args) {
+			int version = 0;
+			boolean binaryRequested = false;
+			try {
+				version = args.hasMoreTokens() ? (int) args.nextLong() : 0;
+			} catch (NumberFormatException nfe) {
+				log.warn("Invalid protocol version: %s", nfe);
+			}
+			while (args.hasMoreTokens()) {
+				binaryRequested |= args.nextToken()
+						.equalsIgnoreCase(FTPApplication.BINARY);
+			}
+			final boolean useBinary = allowBinary && binaryRequested
+					&& version >= FTPApplication.PROTOCOL_VERSION;
+			sendMessage(FTPApplication.HELLO_REPLY + " "
+					+ FTPApplication.PROTOCOL_VERSION + " "
+					+ (useBinary ? FTPApplication.BINARY : FTPApplication.TEXT));
+			binary = useBinary;
+		}
+
+		/**
+		 * Sends the number of available files followed by their names.
+		 */
+		private void list() {
+			final DirectoryListing.Entry[] availableFiles = listing.entries();
+			if (availableFiles == null) {
+				sendMessage(String.valueOf(FTPApplication.ERROR));
+			} else {
+				sendMessage(String.valueOf(availableFiles.length));
+				for (final DirectoryListing.Entry file : availableFiles) {
+					sendMessage(file.name);
+				}
+			}
+		}
+
+		/**
+		 * Sends one page of the listing, with metadata, in a single frame,
+		 * like ServerSession.handleList.
+		 */
+		private void listPage(final CommandLine args) {
+			String pattern = "*";
+			int offset = 0;
+			int limit = DirectoryListing.DEFAULT_PAGE;
+			try {
+				if (args.hasMoreTokens()) {
+					pattern = args.nextToken();
+				}
+				if (args.hasMoreTokens()) {
+					offset = (int) Math.max(0, args.nextLong());
+				}
+				if (args.hasMoreTokens()) {
+					limit = (int) args.nextLong();
+				}
+			} catch (NumberFormatException nfe) {
+				log.warn("Invalid page bounds: %s", nfe);
+			}
+			sendFrame(listing.page(pattern, offset, limit));
+		}
+
+		/**
+		 * Queues the length and contents of a requested file.
+		 *
+		 * @param filename
+		 *            name of the file to transmit
+		 */
+		private void startDownload(final String filename) throws IOException {
+			final File file = new File(fileBase + filename);
+			if (binary && filename != null && file.isFile()) {
+				// popular files come straight from memory
+				final ByteBuffer cached = contentCache.get(file);
+				if (cached != null) {
+					sendMessage(String.valueOf(cached.remaining()));
+					out.add(encodeLength(cached.remaining()));
+					metrics.sent(cached.remaining());
+					out.add(cached);
+					return;
+				}
+			}
+
+			FileChannel source = null;
+			if (filename != null && file.isFile()) {
+				try {
+					source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				} catch (IOException ioe) {
+					log.warn("Error opening %s: %s", file, ioe);
+				}
+			}
+			if (source == null) {
+				sendMessage(String.valueOf(FTPApplication.ERROR));
+			} else {
+				final long length = source.size();
+				sendMessage(String.valueOf(length));
+				out.add(encodeLength(length));
+				out.add(new FileSend(source, length));
+				metrics.sent(length);
+			}
+		}
+
+		/**
+		 * Prepares to receive an upload. If the target cannot be opened the
+		 * data is still consumed and the failure reported afterwards.
+		 *
+		 * @param filename
+		 *            the name to give the new file
+		 */
+		private void startUpload(final String filename) {
+			uploadName = filename;
+			uploadFailure = null;
+			try {
+				if (filename == null) {
+					throw new IOException("No file name given");
+				}
+				upload = FileChannel.open(partialFile(filename).toPath(),
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+			} catch (IOException ioe) {
+				uploadFailure = ioe;
+			}
+			state = State.PUT_HEADER;
+		}
+
+		/**
+		 * Reads upload bytes straight from the socket into the loop's transfer
+		 * buffer, never past the end of the upload.
+		 */
+		private void readUploadDirect() throws IOException {
+			final ByteBuffer chunk = loop.transferBuffer;
+			chunk.clear();
+			chunk.limit((int) Math.min(chunk.capacity(), uploadRemaining));
+			final int amt = channel.read(chunk);
+			if (amt < 0) {
+				close();
+				return;
+			}
+			lastActive = System.currentTimeMillis();
+			chunk.flip();
+			writeUpload(chunk);
+			uploadRemaining -= amt;
+			if (uploadRemaining == 0) {
+				finishUpload();
+			}
+		}
+
+		/**
+		 * Moves buffered upload bytes to the file.
+		 *
+		 * @return true if the state machine advanced
+		 */
+		private boolean consumeUpload() throws IOException {
+			if (uploadRemaining == 0) {
+				finishUpload();
+				return true;
+			}
+			final ByteBuffer chunk;
+			if (binary) {
+				if (!in.hasRemaining()) {
+					return false;
+				}
+				chunk = in.slice();
+				chunk.limit((int) Math.min(chunk.remaining(), uploadRemaining));
+				in.position(in.position() + chunk.remaining());
+			} else {
+				chunk = loop.transferBuffer;
+				chunk.clear();
+				while (chunk.hasRemaining() && uploadRemaining - chunk.position() > 0) {
+					final long value = parseLine();
+					if (value == Long.MIN_VALUE) {
+						break;
+					}
+					chunk.put((byte) value);
+				}
+				chunk.flip();
+				if (!chunk.hasRemaining()) {
+					return false;
+				}
+			}
+			uploadRemaining -= chunk.remaining();
+			writeUpload(chunk);
+			return true;
+		}
+
+		/**
+		 * Writes a chunk to the upload target, remembering the first failure.
+		 */
+		private void writeUpload(final ByteBuffer chunk) {
+			if (upload != null && uploadFailure == null) {
+				try {
+					while (chunk.hasRemaining()) {
+						upload.write(chunk);
+					}
+				} catch (IOException ioe) {
+					uploadFailure = ioe;
+				}
+			}
+		}
+
+		/**
+		 * Closes the upload target and hands it to the group commit. Input is
+		 * left unparsed until the commit completes and the status reply is
+		 * queued, so a pipelined command never sees the old file.
+		 */
+		private void finishUpload() {
+			try {
+				if (upload != null) {
+					upload.close();
+				}
+			} catch (IOException ioe) {
+				if (uploadFailure == null) {
+					uploadFailure = ioe;
+				}
+			}
+			upload = null;
+			if (uploadFailure != null) {
+				finishCommit(uploadFailure);
+				return;
+			}
+			state = State.COMMIT;
+			commits.submit(partialFile(uploadName).toPath(),
+					new File(fileBase + uploadName).toPath()).whenComplete(
+					(ignored, failure) -> loop.execute(() -> resume(failure)));
+		}
+
+		/**
+		 * Replies to a committed upload and parses the input that queued up
+		 * meanwhile. Runs on the event loop.
+		 */
+		private void resume(final Throwable failure) {
+			if (state != State.COMMIT) {
+				return;
+			}
+			finishCommit(failure);
+			try {
+				process();
+				flush();
+			} catch (IOException | RuntimeException e) {
+				log.warn("Closing: %s", e);
+				close();
+			}
+		}
+
+		/**
+		 * Queues the status reply to an upload.
+		 *
+		 * @param failure
+		 *            why the upload was not stored, or null if it was
+		 */
+		private void finishCommit(final Throwable failure) {
+			if (failure != null) {
+				log.warn("Error storing %s: %s", uploadName, failure);
+				if (uploadName != null) {
+					// this engine cannot resume, so the partial file is useless
+					partialFile(uploadName).delete();
+				}
+			} else {
+				contentCache.invalidate(new File(fileBase + uploadName));
+				listing.refresh(uploadName + FTPApplication.PARTIAL_SUFFIX);
+				listing.refresh(uploadName);
+			}
+			sendMessage(failure == null ? FTPApplication.PUT_OK
+					: FTPApplication.PUT_FAILED);
+			sendMessage(ServerSession.PROMPT);
+			state = State.COMMAND;
+		}
+
+		/**
+		 * @return where an upload is written until it is committed
+		 */
+		private File partialFile(final String filename) {
+			return new File(fileBase + filename + FTPApplication.PARTIAL_SUFFIX);
+		}
+
+		// ------------------------------------------------------------------
+		// FRAMING
+		// ------------------------------------------------------------------
+
+		/**
+		 * Decodes one complete command line from the input into line. A binary
+		 * frame is split where it lies in the input buffer, a text frame in
+		 * the line's own buffer, so neither is copied out.
+		 *
+		 * @return true if line holds a command, false if more input is needed
+		 */
+		private boolean decodeCommand() throws IOException {
+			if (binary) {
+				if (in.remaining() < Integer.BYTES) {
+					return false;
+				}
+				final int length = in.getInt(in.position());
+				if (length < 0 || length > MAX_MESSAGE) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				if (in.remaining() < Integer.BYTES + length) {
+					return false;
+				}
+				final int start = in.position() + Integer.BYTES;
+				line.parse(in.array(), in.arrayOffset() + start, length);
+				in.position(start + length);
+				return true;
+			}
+
+			if (textFrame == null) {
+				final long length = parseLine();
+				if (length == Long.MIN_VALUE) {
+					return false;
+				}
+				if (length < 0 || length > MAX_MESSAGE) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				textLength = (int) length;
+				textFrame = line.buffer(textLength);
+				textIndex = 0;
+			}
+			while (textIndex < textLength) {
+				final long value = parseLine();
+				if (value == Long.MIN_VALUE) {
+					return false;
+				}
+				textFrame[textIndex++] = (byte) value;
+			}
+			line.parse(textFrame, 0, textLength);
+			textFrame = null;
+			return true;
+		}
+
+		/**
+		 * Decodes the 64-bit length that precedes file data.
+		 *
+		 * @return the length, or -1 if more input is needed
+		 */
+		private long decodeLength() throws IOException {
+			final long length;
+			if (binary) {
+				if (in.remaining() < Long.BYTES) {
+					return -1;
+				}
+				length = in.getLong();
+			} else {
+				length = parseLine();
+				if (length == Long.MIN_VALUE) {
+					return -1;
+				}
+			}
+			if (length < 0) {
+				throw new IOException("Invalid data length " + length);
+			}
+			return length;
+		}
+
+		/**
+		 * Parses one decimal line of the text framing.
+		 *
+		 * @return the value, or Long.MIN_VALUE if the line is incomplete
+		 */
+		private long parseLine() throws IOException {
+			final int start = in.position();
+			long value = 0;
+			boolean negative = false;
+			int digits = 0;
+			for (int i = start; i < in.limit(); i++) {
+				final byte c = in.get(i);
+				if (c == '\n') {
+					if (digits == 0) {
+						throw new IOException("Empty frame line");
+					}
+					in.position(i + 1);
+					return negative ? -value : value;
+				} else if (c == '-' && i == start) {
+					negative = true;
+				} else if (c >= '0' && c <= '9' && digits < 18) {
+					value = value * 10 + (c - '0');
+					digits++;
+				} else if (c != '\r') {
+					throw new IOException("Malformed frame line");
+				}
+			}
+			return Long.MIN_VALUE;
+		}
+
+		/**
+		 * Queues a message in the connection's current framing.
+		 *
+		 * @param message
+		 *            text to send
+		 */
+		private void sendMessage(final String message) {
+			sendFrame(message.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * Queues raw frame bytes in the connection's current framing.
+		 *
+		 * @param bytes
+		 *            frame payload
+		 */
+		private void sendFrame(final byte[] bytes) {
+			if (binary) {
+				final ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + bytes.length);
+				frame.putInt(bytes.length).put(bytes).flip();
+				out.add(frame);
+			} else {
+				final ByteBuffer frame = ByteBuffer.allocate(
+						(bytes.length + 1) * 5 + 16);
+				putTextLine(frame, bytes.length);
+				for (final byte b : bytes) {
+					putTextLine(frame, b);
+				}
+				frame.flip();
+				out.add(frame);
+			}
+		}
+
+		/**
+		 * Encodes the 64-bit length that precedes file data.
+		 */
+		private ByteBuffer encodeLength(final long length) {
+			final ByteBuffer header = ByteBuffer.allocate(24);
+			if (binary) {
+				header.putLong(length);
+			} else {
+				putTextLine(header, length);
+			}
+			header.flip();
+			return header;
+		}
+
+		// ------------------------------------------------------------------
+		// OUTPUT
+		// ------------------------------------------------------------------
+
+		/**
+		 * Writes as much pending output as the socket accepts, then selects
+		 * for writability if anything is left. Reading stops while a download
+		 * is queued or an upload is being committed, since nothing is parsed
+		 * meanwhile, and resumes once the download has been fully written or
+		 * the commit has been answered.
+		 */
+		private void flush() throws IOException {
+			if (state == State.CLOSED) {
+				return;
+			}
+			while (!out.isEmpty()) {
+				final Object head = out.peek();
+				if (head instanceof ByteBuffer) {
+					final ByteBuffer buffer = (ByteBuffer) head;
+					if (channel.write(buffer) > 0) {
+						lastActive = System.currentTimeMillis();
+					}
+					if (buffer.hasRemaining()) {
+						break;
+					}
+				} else {
+					final FileSend send = (FileSend) head;
+					if (!send.send()) {
+						break;
+					}
+					send.close();
+				}
+				out.poll();
+				lastActive = System.currentTimeMillis();
+			}
+
+			if (out.isEmpty() && in.position() > 0 && state != State.COMMIT) {
+				// requests that arrived while a download was in flight
+				process();
+				if (!out.isEmpty()) {
+					flush();
+					return;
+				}
+			}
+			if (state == State.CLOSED) {
+				return;
+			}
+			// unread input waits in the socket rather than piling up here
+			final boolean parsing = state != State.COMMIT && !sendingFile();
+			key.interestOps((parsing ? SelectionKey.OP_READ : 0)
+					| (out.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+		}
+
+		/**
+		 * @return true while a file is still queued for sending
+		 */
+		private boolean sendingFile() {
+			for (final Object pending : out) {
+				if (pending instanceof FileSend) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Doubles the input buffer, up to the largest legal binary frame.
+		 */
+		private void growInput() throws IOException {
+			if (in.capacity() >= MAX_MESSAGE + Integer.BYTES) {
+				throw new IOException("Request too large");
+			}
+			final ByteBuffer larger = ByteBuffer.allocate(Math.min(
+					in.capacity() * 2, MAX_MESSAGE + Integer.BYTES));
+			in.flip();
+			larger.put(in);
+			in = larger;
+		}
+
+		/**
+		 * Closes the connection and any open files.
+		 */
+		private void close() {
+			if (state == State.CLOSED) {
+				return;
+			}
+			state = State.CLOSED;
+			metrics.sessionClosed();
+			log.info("Session closed.");
+			for (final Object pending : out) {
+				if (pending instanceof FileSend) {
+					((FileSend) pending).close();
+				}
+			}
+			out.clear();
+			try {
+				if (upload != null) {
+					upload.close();
+				}
+				if (key != null) {
+					key.cancel();
+				}
+				channel.close();
+			} catch (IOException ioe) {
+				log.warn("I/O Error terminating session: %s", ioe);
+			}
+		}
+
+		/**
+		 * A file being written to the connection, resumable across partial
+		 * non-blocking writes.
+		 */
+		private final class FileSend {
+			private final FileChannel source;
+			private final long end;
+			private long position;
+
+			/* Encoded text lines not yet written, text framing only */
+			private ByteBuffer encoded;
+
+			private FileSend(final FileChannel source, final long end) {
+				this.source = source;
+				this.end = end;
+			}
+
+			/**
+			 * Sends until the socket would block or the file is done. Any
+			 * progress counts as activity, so a long download is not timed out.
+			 *
+			 * @return true once every byte has been sent
+			 */
+			private boolean send() throws IOException {
+				if (binary) {
+					while (position < end) {
+						final long sent = source.transferTo(position,
+								end - position, channel);
+						if (sent == 0) {
+							if (position >= source.size()) {
+								throw new EOFException("File shrank during transfer");
+							}
+							return false;
+						}
+						position += sent;
+						lastActive = System.currentTimeMillis();
+					}
+					return true;
+				}
+
+				final ByteBuffer chunk = loop.transferBuffer;
+				while (true) {
+					if (encoded != null && encoded.hasRemaining()) {
+						if (channel.write(encoded) > 0) {
+							lastActive = System.currentTimeMillis();
+						}
+						if (encoded.hasRemaining()) {
+							return false;
+						}
+					}
+					if (position >= end) {
+						return true;
+					}
+					if (encoded == null) {
+						encoded = ByteBuffer.allocate(TEXT_CHUNK * 5);
+					}
+					chunk.clear();
+					chunk.limit((int) Math.min(Math.min(TEXT_CHUNK,
+							chunk.capacity()), end - position));
+					final int amt = source.read(chunk, position);
+					if (amt < 0) {
+						throw new EOFException("File shrank during transfer");
+					}
+					position += amt;
+					chunk.flip();
+					encoded.clear();
+					while (chunk.hasRemaining()) {
+						putTextLine(encoded, chunk.get());
+					}
+					encoded.flip();
+				}
+			}
+
+			private void close() {
+				try {
+					source.close();
+				} catch (IOException ioe) {
+					log.warn("Error closing file: %s", ioe);
+				}
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Pauses after a failed accept so that a persistent failure, e.g. running
+	 * out of file descriptors, neither spins the accepting thread nor floods
+	 * the log, like FTPServer's accept loop.
+	 *
+	 * @param ioe
+	 *            why the accept failed
+	 */
+	private void backOff(final IOException ioe) {
+		unreportedAcceptFailures++;
+		final long now = System.currentTimeMillis();
+		if (now - lastAcceptWarning >= ACCEPT_WARN_INTERVAL) {
+			log.warn("%s Error accepting client (%d failures), retrying in %d ms",
+					ioe, unreportedAcceptFailures, acceptBackoff);
+			lastAcceptWarning = now;
+			unreportedAcceptFailures = 0;
+		}
+		LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(acceptBackoff));
+		acceptBackoff = Math.min(acceptBackoff * 2, MAX_ACCEPT_BACKOFF);
+	}
+
+	/**
+	 * Appends one decimal line of the text framing to a buffer.
+	 *
+	 * @param buffer
+	 *            target buffer
+	 * @param value
+	 *            the value to write
+	 */
+	private static void putTextLine(final ByteBuffer buffer, final long value) {
+		final String digits = Long.toString(value);
+		for (int i = 0; i < digits.length(); i++) {
+			buffer.put((byte) digits.charAt(i));
+		}
+		buffer.put((byte) '\n');
+	}
+
+}
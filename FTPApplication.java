@@ -1,7 +1,18 @@
 import java.io.*;
 import java.net.Socket;
-import java.text.MessageFormat;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Models FTP commands in a modular, extendible way. This abstract class
@@ -22,17 +33,134 @@ import java.util.StringTokenizer;
 	protected static final String GET = "get"; // change-protected
 	protected static final String LS = "ls"; // change-protected
 	protected static final String EXIT = "exit"; // change-protected
+	protected static final String HELLO = "hello";
+	protected static final String LIST = "list";
+	protected static final String REST = "rest";
+	protected static final String REPUT = "reput";
+	protected static final String PGET = "pget";
+	protected static final String MGET = "mget";
+	protected static final String MPUT = "mput";
+	protected static final String DPUT = "dput";
+	protected static final String CPUT = "cput";
+	protected static final String STATS = "stats";
+
+	/* Server replies to a put */
+	protected static final String PUT_OK = "PUT OK";
+	protected static final String PUT_FAILED = "PUT FAILED";
+
+	/* Replies to a client, get or upload turned away by admission control */
+	protected static final String SERVER_BUSY = "SERVER BUSY";
+	protected static final int BUSY = -2;
+
+	/* Wire framing negotiated by the hello exchange */
+	protected static final int PROTOCOL_VERSION = 1;
+	protected static final String BINARY = "binary";
+	protected static final String TEXT = "text";
+	protected static final String HELLO_REPLY = "HELLO";
+
+	/* Optional protocol features, requested and granted by the hello exchange */
+	protected static final String RANGES = "ranges";
+	protected static final String DEFLATE = "deflate";
+	protected static final String PIPELINE = "pipeline";
+	protected static final String DELTA = "delta";
+	protected static final String CHUNKS = "chunks";
+	protected static final String CHECKSUM = "crc32c";
+	protected static final String METRICS = "metrics";
+
+	/* Suffix of incomplete transfers kept for resuming */
+	protected static final String PARTIAL_SUFFIX = ".part";
+
+	/* Suffix of files being rebuilt from a delta */
+	protected static final String DELTA_SUFFIX = ".delta";
 
 	/* Path to the directory from which to serve or store files */
-	protected static  String fileBase;
+	protected final String fileBase;
 
 	/* Network I/O objects used for sending/receiving data */
-	protected static Socket socket;
-	protected static BufferedReader lineIn;
-	protected static PrintWriter lineOut;
+	protected Socket socket;
+	protected DataInputStream dataIn;
+	protected DataOutputStream dataOut;
+
+	/*
+	 * False while frames are exchanged as decimal text lines (the original
+	 * format), true once both ends agreed on length-prefixed binary frames.
+	 */
+	protected boolean binaryFraming = false;
+
+	/* Features both ends agreed on in the hello exchange */
+	protected final Set<String> features = new HashSet<>();
+
+	/*
+	 * Chunk size for streamed file transfers; bounds memory per transfer.
+	 * Process-wide configuration, unlike the per-session state above.
+	 */
+	protected static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	protected static int bufferSize = DEFAULT_BUFFER_SIZE;
+	private byte[] transferBuffer;
+
+	/* Separate from transferBuffer so a pipelined client can send and receive at once */
+	private byte[] receiveBuffer;
+
+	/* Digits of a number being sent, and of a text framing line being written */
+	private final byte[] numberBytes = new byte[20];
+	private final byte[] lineBytes = new byte[21];
+
+	/*
+	 * Send path selection: zero-copy transferTo when possible, otherwise files
+	 * of at least mmapThreshold bytes (0 disables) are memory-mapped in
+	 * windows of MMAP_WINDOW bytes, and smaller ones are read in chunks.
+	 */
+	protected static final long DEFAULT_MMAP_THRESHOLD = 8L * 1024 * 1024;
+	protected static final long MMAP_WINDOW = 256L * 1024 * 1024;
+	protected static boolean zeroCopy = true;
+	protected static long mmapThreshold = DEFAULT_MMAP_THRESHOLD;
+
+	/*
+	 * Once both ends agreed on DEFLATE, every stream of file data starts with
+	 * a codec marker. The sender deflates the first chunk as a sample and only
+	 * compresses the transfer if that saved more than a tenth; data that is
+	 * already compressed goes out raw, still eligible for zero-copy. Deflated
+	 * data follows as length-prefixed blocks ended by an empty one.
+	 */
+	private static final int CODEC_RAW = 0;
+	private static final int CODEC_DEFLATE = 1;
+	private static final double COMPRESSIBLE_RATIO = 0.9;
+	private static final int MAX_BLOCK = 16 * 1024 * 1024;
+	protected static boolean compression = true;
+	protected static int compressionLevel = Deflater.BEST_SPEED;
+
+	/* True if the file data announced by the last readLength is deflated */
+	private boolean inflating;
+
+	/*
+	 * Rate limits on streamed file data, null if there are none. A shaped
+	 * session gives up zero-copy and mapped sends so every chunk passes
+	 * through writePayload or readPayload, where tokens are taken.
+	 */
+	protected BandwidthShaper shaper;
+
+	/**
+	 * Runs one command on the session it was received by.
+	 */
+	protected interface Command {
+		void run(FTPApplication session, CommandLine args);
+	}
+
+	/* The commands every session understands */
+	private static final CommandTable<Command> COMMANDS = defaultCommands();
+
+	/**
+	 * Positional reader of the data being sent, e.g. FileChannel::read.
+	 */
+	protected interface ChunkSource {
+		int read(ByteBuffer chunk, long position) throws IOException;
+	}
 
 	/* Flag used to break session loop */
-	protected static boolean exitRecieved = false;
+	protected boolean exitRecieved = false;
+
+	/* Suppresses progress chatter, e.g. on bulk transfer worker connections */
+	protected boolean quiet = false;
 
 	// ----------------------------------------------------------------------
 	// CONSTRUCTOR
@@ -53,13 +181,15 @@ import java.util.StringTokenizer;
 	 protected added before FTPApplication
 	 */
 	protected  FTPApplication(final String filebase) {
+		String base;
 		try {
 			final File path = new File(filebase);
-			this.fileBase = path.getCanonicalPath() + File.separator;
+			base = path.getCanonicalPath() + File.separator;
 		} catch (IOException ioe) {
-			this.fileBase = "";
+			base = "";
 			System.err.printf("Could not access %s: %s", filebase, ioe);
 		}
+		this.fileBase = base;
 	}
 
 	// ----------------------------------------------------------------------
@@ -74,11 +204,14 @@ import java.util.StringTokenizer;
 	protected void setUpIO() throws IOException {
 		if (socket != null) {
 			socket.setSoTimeout(SOCKET_TIMEOUT);
-			final InputStreamReader  input = new InputStreamReader(
-					socket.getInputStream(),"UTF-8");
-			lineIn = new BufferedReader(input);
-			lineOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),"UTF-8")
-			, true);
+			socket.setTcpNoDelay(true);
+			// both framings share one buffered stream, so switching from text
+			// to binary mid-session never strands read-ahead bytes
+			dataIn = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			dataOut = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream()));
+			binaryFraming = false;
 		} else {
 			System.err.println("Cannot set up IO, socket is null.%n");
 		}
@@ -93,24 +226,23 @@ import java.util.StringTokenizer;
 	 */
 	protected void terminate() {
 		try {
-			System.out.printf("Terminating session ... ");
-			if (lineIn != null) {
-				lineIn.close();
+			if (dataIn != null) {
+				dataIn.close();
 			}
 
-			if (lineOut != null) {
-				lineOut.flush();
-				lineOut.close();
+			if (dataOut != null) {
+				dataOut.flush();
+				dataOut.close();
 			}
 
 			if (socket != null) {
 				socket.close();
 			}
 
-			System.out.printf("done.%n");
+			chatter("Session terminated.%n");
 
 		} catch (IOException ioe) {
-			System.err.printf("I/O Error terminating session: %s%n", ioe);
+			warning("I/O Error terminating session: %s%n", ioe);
 		}
 	}
 
@@ -119,25 +251,88 @@ import java.util.StringTokenizer;
 	 *
 	 * @param args
 	 *            User arguments
+	 * @return name of the command run, or null if there was none
 	 */
-	protected void processCommand(final StringTokenizer args) {
-		if (args.hasMoreTokens()) {
-			final String command = args.nextToken();
-			if (command.equalsIgnoreCase(PUT)) {
-				final String file = args.hasMoreTokens() ? args.nextToken() : null;
-				handlePut(file);
-			} else if (command.equalsIgnoreCase(GET)) {
-				final String file = args.hasMoreTokens() ? args.nextToken() : null;
-				handleGet(file);
-			} else if (command.equalsIgnoreCase(LS)) {
-				handleLs();
-			} else if (command.equalsIgnoreCase(EXIT)) {
-				handleExit();
-			} else {
-				handleOther(true);
-			}
+	protected String processCommand(final CommandLine args) {
+		final Command command = commands().lookup(args);
+		if (command != null) {
+			command.run(this, args);
 		} else {
-			handleOther(false);
+			handleOther(args.hasMoreTokens());
+		}
+		return args.command();
+	}
+
+	/**
+	 * Returns the commands this session runs. Subclasses adding commands
+	 * return their own table, built on {@link #defaultCommands}.
+	 *
+	 * @return the command table
+	 */
+	protected CommandTable<Command> commands() {
+		return COMMANDS;
+	}
+
+	/**
+	 * Builds a table of the commands every session understands.
+	 *
+	 * @return a new table, to which more commands may be added
+	 */
+	protected static CommandTable<Command> defaultCommands() {
+		return new CommandTable<Command>()
+				.register(PUT, (session, args) -> {
+					final String file = args.hasMoreTokens() ? args.nextToken() : null;
+					session.handlePut(file, nextLong(session, args, 0));
+				})
+				.register(GET, (session, args) -> {
+					final String file = args.hasMoreTokens() ? args.nextToken() : null;
+					final long offset = nextLong(session, args, 0);
+					session.handleGet(file, offset,
+							nextLong(session, args, ERROR));
+				})
+				.register(REST, (session, args) -> session.handleRest(
+						args.hasMoreTokens() ? args.nextToken() : null))
+				.register(REPUT, (session, args) -> session.handleReput(
+						args.hasMoreTokens() ? args.nextToken() : null))
+				.register(PGET, (session, args) -> {
+					final String file = args.hasMoreTokens() ? args.nextToken() : null;
+					session.handlePget(file,
+							(int) nextLong(session, args, ERROR));
+				})
+				.register(CPUT, (session, args) -> session.handleCput(
+						args.hasMoreTokens() ? args.nextToken() : null))
+				.register(STATS, (session, args) -> session.handleStats())
+				.register(DPUT, (session, args) -> session.handleDput(
+						args.hasMoreTokens() ? args.nextToken() : null))
+				.register(MGET, (session, args) -> session.handleMget(args))
+				.register(MPUT, (session, args) -> session.handleMput(args))
+				.register(LS, (session, args) -> session.handleLs())
+				.register(LIST, (session, args) -> session.handleList(args))
+				.register(EXIT, (session, args) -> session.handleExit())
+				.register(HELLO, (session, args) -> session.handleHello(args));
+	}
+
+	/**
+	 * Reads an optional numeric argument.
+	 *
+	 * @param session
+	 *            the session to warn about a malformed number
+	 * @param args
+	 *            remaining tokens
+	 * @param absent
+	 *            value to return if there is no valid number
+	 * @return the parsed value, or absent
+	 */
+	protected static long nextLong(final FTPApplication session,
+			final CommandLine args, final long absent) {
+		if (!args.hasMoreTokens()) {
+			return absent;
+		}
+		try {
+			return args.nextLong();
+		} catch (NumberFormatException nfe) {
+			session.warning("Invalid number: %s%n", nfe);
+			return absent;
 		}
 	}
 
@@ -149,89 +344,453 @@ import java.util.StringTokenizer;
 	 * @return full local path to file
 	 */
 	final protected String getFilePath(final String file) {
-		return MessageFormat.format("{0}{1}", fileBase, file);
+		return fileBase + file;
 	}
 
 	/**
-	 * Read the given file from disk into a byte array.
+	 * Streams part of the given file from disk onto the socket. In binary
+	 * framing over a channel-backed socket the bytes go straight from the page
+	 * cache to the socket with FileChannel.transferTo. Otherwise, or if that
+	 * fails, large ranges are memory-mapped window by window and written from
+	 * the mapping, and small ones are copied in chunks of at most bufferSize
+	 * bytes.
 	 *
 	 * @param file
 	 *            the target file
-	 * @return byte array containing file contents
+	 * @param offset
+	 *            position of the first byte to send
+	 * @param length
+	 *            the number of bytes announced to the receiver
+	 * @param checksum
+	 *            updated with the bytes sent, or null; rules out zero-copy
+	 * @return number of bytes sent
+	 * @throws IOException
+	 *             if the file cannot be read or ends before the range does
 	 */
-	 protected byte[] readFile(final File file) {
-		 byte[] data = new byte[(int) file.length()];
+	protected long readFile(final File file, final long offset, final long length,
+			final Checksum checksum) throws IOException {
+		try (FileChannel source = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			final long end = offset + length;
+			long position = offset;
+			final SocketChannel target = binaryFraming && shaper == null
+					? socket.getChannel() : null;
+			if (target != null) {
+				// everything buffered so far must precede the file bytes
+				dataOut.flush();
+			}
+			if (target != null && zeroCopy && checksum == null) {
+				source.position(position);
+				try {
+					position = transferFile(source, target, position, end);
+				} catch (IOException ioe) {
+					warning("Zero-copy send failed, copying: %s%n", ioe);
+					position = source.position();
+				}
+			}
+			if (mmapThreshold > 0 && end - position >= mmapThreshold) {
+				mapFile(source, target, position, end, checksum);
+			} else {
+				copyFile(source, position, end, checksum);
+			}
+		}
+
+		if (chatty()) {
+			chatter("Sent %s (%d bytes).%n", file, length);
+		}
+		return length;
+	}
+
+	/**
+	 * Streams length bytes from the socket into a file in the filebase,
+	 * starting at offset. The file ends where the received bytes end; it must
+	 * already hold at least offset bytes. If the file cannot be written, or
+	 * the bytes fail their checksum, the remaining bytes are still drained so
+	 * the session stays in sync, the file is cut back to offset, and the
+	 * error is rethrown afterwards.
+	 *
+	 * @param filename
+	 *            the name to give the new file.
+	 * @param offset
+	 *            position at which to write the first byte
+	 * @param length
+	 *            the number of bytes to receive
+	 * @throws IOException
+	 */
+	protected void storeFile(final String filename, final long offset,
+			final long length) throws IOException {
+		final String toWrite = getFilePath(filename);
+		IOException failure = null;
+		FileChannel fileOut = null;
 
-		 FileInputStream fis=null;
 		try {
-			try {
-				fis = new FileInputStream(file);
-				System.out.printf("Loading %s ... ", file);
+			fileOut = FileChannel.open(new File(toWrite).toPath(),
+					StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+			if (fileOut.size() < offset) {
+				failure = new IOException(String.format(
+						"%s holds %d bytes, cannot write at %d", toWrite,
+						fileOut.size(), offset));
+			}
+		} catch (IOException ioe) {
+			failure = ioe;
+		}
 
-				int amt = fis.read(data, 0, data.length);
-				System.out.printf("done (%d bytes).%n", amt);
-			}finally {
-				fis.close();
-				System.err.printf("Connecting is closing");
+		try {
+			final IOException writeFailure = storeRange(
+					failure == null ? fileOut : null, offset, length);
+			if (failure == null && writeFailure != null) {
+				// a resume must not build on bytes that failed to arrive intact
+				fileOut.truncate(offset);
+				failure = writeFailure;
+			} else if (failure == null) {
+				fileOut.truncate(offset + length);
+			}
+		} finally {
+			if (fileOut != null) {
+				fileOut.close();
 			}
+		}
 
-		} catch (IOException ioe) {
-			System.err.printf("Error reading file: %s%n", ioe);
+		if (failure != null) {
+			throw failure;
+		}
+		if (chatty()) {
+			chatter("Stored %s (%d bytes at %d).%n", toWrite, length, offset);
+		}
+	}
+
+	/**
+	 * Receives length payload bytes and writes them to a channel starting at
+	 * position, without touching the rest of the file. Once a write fails, or
+	 * if there is no target, the remaining bytes are only drained. A checksum
+	 * trailer, if agreed on, is read and checked.
+	 *
+	 * @param target
+	 *            the file to write into, or null to discard the bytes
+	 * @param position
+	 *            file position of the first byte
+	 * @param length
+	 *            the number of bytes to receive
+	 * @return the first write failure or a checksum mismatch, or null if every
+	 *         byte arrived intact and was written
+	 * @throws IOException
+	 *             if the socket fails
+	 */
+	protected IOException storeRange(final FileChannel target, final long position,
+			final long length) throws IOException {
+		if (inflating) {
+			inflating = false;
+			return inflateRange(target, position, length);
+		}
+		final byte[] buffer = receiveBuffer();
+		final ByteBuffer chunk = ByteBuffer.wrap(buffer);
+		final Checksum checksum = checksum();
+		IOException failure = target == null ? new IOException("No target") : null;
+		long offset = position;
+		final long end = position + length;
+		while (offset < end) {
+			final int amt = (int) Math.min(buffer.length, end - offset);
+			readPayload(buffer, amt);
+			if (checksum != null) {
+				checksum.update(buffer, 0, amt);
+			}
+			if (failure == null) {
+				try {
+					chunk.clear().limit(amt);
+					while (chunk.hasRemaining()) {
+						target.write(chunk, offset + chunk.position());
+					}
+				} catch (IOException ioe) {
+					failure = ioe;
+				}
+			}
+			offset += amt;
 		}
+		return checkTrailer(checksum, failure);
+	}
 
-		return data;
+	/**
+	 * Sends a file as a 64-bit length followed by its contents.
+	 *
+	 * @param file
+	 *            the file to send
+	 * @throws IOException
+	 */
+	protected void sendFile(final File file) throws IOException {
+		sendFile(file, 0, file.length());
 	}
 
 	/**
-	 * Writes a file to the filebase.
+	 * Sends a byte range of a file as a 64-bit length followed by the bytes.
+	 *
+	 * @param file
+	 *            the file to send
+	 * @param offset
+	 *            position of the first byte to send
+	 * @param length
+	 *            number of bytes to send
+	 * @throws IOException
+	 */
+	protected void sendFile(final File file, final long offset, final long length)
+			throws IOException {
+		writeLength(length);
+		Checksum checksum = checksum();
+		// the version sent, in case the file is replaced while it goes out
+		final long modified = file.lastModified();
+		final long size = file.length();
+		final boolean whole = offset == 0 && length == size;
+		final Integer known = checksum != null && whole ? knownChecksum(file) : null;
+		if (known != null) {
+			checksum = null;
+		}
+
+		boolean sent = false;
+		if (features.contains(DEFLATE)) {
+			try (FileChannel source = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ)) {
+				sent = deflate(source::read, offset, length, checksum);
+			}
+		}
+		if (!sent) {
+			readFile(file, offset, length, checksum);
+		}
+
+		if (known != null) {
+			writeInt(known);
+		} else if (checksum != null) {
+			if (whole) {
+				checksumComputed(file, modified, size, (int) checksum.getValue());
+			}
+			writeTrailer(checksum);
+		}
+		dataOut.flush();
+	}
+
+	/**
+	 * Sends in-memory file contents as a 64-bit length followed by the bytes,
+	 * exactly as {@link #sendFile(File)} would.
 	 *
 	 * @param data
-	 *            Raw bytes of a file
+	 *            file contents from position to limit
+	 * @throws IOException
+	 */
+	protected void sendBuffer(final ByteBuffer data) throws IOException {
+		writeLength(data.remaining());
+		final Checksum checksum = checksum();
+		if (checksum != null) {
+			checksum.update(data.duplicate());
+		}
+		final int base = data.position();
+		final SocketChannel target = socket.getChannel();
+		if (features.contains(DEFLATE) && deflate((chunk, position) -> {
+			final ByteBuffer slice = data.duplicate();
+			slice.position(base + (int) position).limit(Math.min(data.limit(),
+					slice.position() + chunk.remaining()));
+			final int amt = slice.remaining();
+			chunk.put(slice);
+			return amt;
+		}, 0, data.remaining(), null)) {
+			data.position(data.limit());
+		} else if (binaryFraming && target != null && shaper == null) {
+			dataOut.flush();
+			while (data.hasRemaining()) {
+				target.write(data);
+			}
+		} else {
+			final byte[] buffer = transferBuffer();
+			while (data.hasRemaining()) {
+				final int amt = Math.min(buffer.length, data.remaining());
+				data.get(buffer, 0, amt);
+				writePayload(buffer, amt);
+			}
+		}
+		writeTrailer(checksum);
+		dataOut.flush();
+	}
+
+	/**
+	 * Sends data that is not a plain file, read through a positional source,
+	 * exactly as {@link #sendFile(File, long, long)} would send a file.
+	 *
+	 * @param source
+	 *            the data to send
+	 * @param offset
+	 *            position of the first byte to send
+	 * @param length
+	 *            number of bytes to send
+	 * @throws IOException
+	 */
+	protected void sendSource(final ChunkSource source, final long offset,
+			final long length) throws IOException {
+		writeLength(length);
+		final Checksum checksum = checksum();
+		if (!features.contains(DEFLATE) || !deflate(source, offset, length, checksum)) {
+			final byte[] buffer = transferBuffer();
+			final ByteBuffer chunk = ByteBuffer.wrap(buffer);
+			final long end = offset + length;
+			for (long position = offset; position < end;) {
+				final int amt = readChunk(source, chunk, position, end);
+				if (checksum != null) {
+					checksum.update(buffer, 0, amt);
+				}
+				writePayload(buffer, amt);
+				position += amt;
+			}
+		}
+		writeTrailer(checksum);
+		dataOut.flush();
+	}
+
+	/**
+	 * Receives a file sent by {@link #sendFile(File)} into the filebase.
+	 *
 	 * @param filename
 	 *            the name to give the new file.
+	 * @return number of bytes received
 	 * @throws IOException
 	 */
-	protected void storeFile(final byte[] data, final String filename) throws IOException {
-		final String toWrite = getFilePath(filename);
-		System.out.printf("Storing file at %s... ", toWrite);
-		final FileOutputStream fileOut = new FileOutputStream(toWrite);
-		fileOut.write(data);
-		fileOut.flush();
-		fileOut.close();
-		System.out.printf("done.%n");
+	protected long receiveFile(final String filename) throws IOException {
+		return receiveFile(filename, 0);
+	}
+
+	/**
+	 * Receives a byte range sent by {@link #sendFile(File, long, long)} into a
+	 * file in the filebase, writing it at offset.
+	 *
+	 * @param filename
+	 *            the file to write
+	 * @param offset
+	 *            position at which to write the first byte
+	 * @return number of bytes received
+	 * @throws IOException
+	 */
+	protected long receiveFile(final String filename, final long offset)
+			throws IOException {
+		final long length = readLength();
+		storeFile(filename, offset, length);
+		return length;
 	}
 
 	/**
-	 * Receives a byte[] as individual ints.
+	 * Reads the 64-bit length that precedes streamed file data.
+	 * 
+	 * @return number of payload bytes that follow
+	 */
+	protected long readLength() throws IOException {
+		final long length = binaryFraming ? dataIn.readLong()
+				: readTextNumber();
+		if (length < 0) {
+			throw new IOException("Invalid data length " + length);
+		}
+		if (shaper != null) {
+			shaper.begin(length);
+		}
+		if (features.contains(DEFLATE)) {
+			final int codec = readInt();
+			if (codec != CODEC_RAW && codec != CODEC_DEFLATE) {
+				throw new IOException("Unknown codec " + codec);
+			}
+			inflating = codec == CODEC_DEFLATE;
+		}
+		return length;
+	}
+
+	/**
+	 * Receives one frame. In binary framing the frame is a 4-byte length
+	 * followed by the raw bytes; in text framing it is a decimal length line
+	 * followed by one decimal line per byte.
 	 * 
 	 * @return a byte[] value
 	 */
 	protected byte[] receiveData() throws IOException {
+		if (binaryFraming) {
+			final int byteAmt = dataIn.readInt();
+			if (byteAmt < 0) {
+				throw new IOException("Invalid frame length " + byteAmt);
+			}
+			final byte[] toReturn = new byte[byteAmt];
+			dataIn.readFully(toReturn);
+			return toReturn;
+		}
+
 		// get amount of bytes expected
-		int byteAmt =  Integer.parseInt(lineIn.readLine());
+		int byteAmt = readTextInt();
 		byte[] toReturn = new byte[byteAmt];
 
 		// receive the bytes
 		for (int i = 0; i < byteAmt; i++) {
-			toReturn[i] = Integer.valueOf(lineIn.readLine()).byteValue();
+			toReturn[i] = (byte) readTextInt();
 		}
 
 		return toReturn;
 	}
 
 	/**
-	 * Transmits bytes one by one as ints.
+	 * Receives one command line into the line's own buffer and splits it
+	 * there, so receiving commands allocates nothing once the buffer has
+	 * grown to the longest line.
+	 * 
+	 * @param line
+	 *            reused for every command of the session
+	 * @return the line, holding the command received
+	 * @throws IOException
+	 *             if the frame cannot be read or is too long for a command
+	 */
+	protected CommandLine receiveCommand(final CommandLine line)
+			throws IOException {
+		final int length = binaryFraming ? dataIn.readInt() : readTextInt();
+		if (length < 0 || length > CommandLine.MAX_LENGTH) {
+			throw new IOException("Invalid command length " + length);
+		}
+		final byte[] bytes = line.buffer(length);
+		if (binaryFraming) {
+			dataIn.readFully(bytes, 0, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				bytes[i] = (byte) readTextInt();
+			}
+		}
+		return line.parse(bytes, 0, length);
+	}
+
+	/**
+	 * Transmits one frame using the negotiated framing.
 	 * 
 	 * @param bytes
 	 *            a byte[] value
 	 */
 	protected void sendData(final byte[] bytes) {
-		// tell receiver # of bytes to expect
-		lineOut.println(bytes.length);
+		sendData(bytes, 0, bytes.length);
+	}
 
-		// send each byte as ints, one-by-one
-		for (final byte aB : bytes) {
-			lineOut.println(Byte.valueOf(aB).intValue());
+	/**
+	 * Transmits part of an array as one frame using the negotiated framing.
+	 * 
+	 * @param bytes
+	 *            holds the frame
+	 * @param offset
+	 *            position of the frame's first byte
+	 * @param length
+	 *            length of the frame
+	 */
+	protected void sendData(final byte[] bytes, final int offset,
+			final int length) {
+		try {
+			if (binaryFraming) {
+				dataOut.writeInt(length);
+				dataOut.write(bytes, offset, length);
+			} else {
+				// tell receiver # of bytes to expect
+				writeTextLine(length);
+
+				// send each byte as ints, one-by-one
+				for (int i = offset; i < offset + length; i++) {
+					writeTextLine(bytes[i]);
+				}
+			}
+			dataOut.flush();
+		} catch (IOException ioe) {
+			warning("I/O error sending data: %s%n", ioe);
 		}
 	}
 
@@ -241,13 +800,19 @@ import java.util.StringTokenizer;
 	 * @param message
 	 */
 	protected final void  sendMessage(final String message) {
-		try{
-			sendData(message.getBytes("UTF-8"));
-		}catch (UnsupportedEncodingException e )
-		{
-
-		}
+		sendData(message.getBytes(StandardCharsets.UTF_8));
+	}
 
+	/**
+	 * Sends a number as a decimal message, as sendMessage(String.valueOf())
+	 * would but without building the String.
+	 * 
+	 * @param value
+	 *            the number to send
+	 */
+	protected final void sendNumber(final long value) {
+		final int start = formatDecimal(value, numberBytes, numberBytes.length);
+		sendData(numberBytes, start, numberBytes.length - start);
 	}
 
 	/**
@@ -256,7 +821,581 @@ import java.util.StringTokenizer;
 	 * @return string received
 	 */
 	protected String receiveMessage() throws IOException {
-		return new String(receiveData(),"UTF-8");
+		return new String(receiveData(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Prints progress to the console unless this connection is quiet.
+	 * 
+	 * @param format
+	 *            printf format
+	 * @param args
+	 *            format arguments
+	 */
+	protected void chatter(final String format, final Object... args) {
+		if (chatty()) {
+			System.out.printf(format, args);
+		}
+	}
+
+	/**
+	 * Tells whether progress is shown, so that callers on a transfer path
+	 * can skip building the arguments of a message nobody sees.
+	 * 
+	 * @return true unless this connection is quiet
+	 */
+	protected boolean chatty() {
+		return !quiet;
+	}
+
+	/**
+	 * Reports a problem that does not end the session to standard error.
+	 * 
+	 * @param format
+	 *            printf format
+	 * @param args
+	 *            format arguments
+	 */
+	protected void warning(final String format, final Object... args) {
+		System.err.printf(format, args);
+	}
+
+	/**
+	 * Returns the checksum of a whole file if it is known without reading the
+	 * file, letting it be sent zero-copy. Nothing is known by default.
+	 * 
+	 * @param file
+	 *            the file about to be sent
+	 * @return its CRC32C, or null
+	 */
+	protected Integer knownChecksum(final File file) {
+		return null;
+	}
+
+	/**
+	 * Called with the checksum of a whole file computed while sending it.
+	 * 
+	 * @param file
+	 *            the file just sent
+	 * @param modified
+	 *            its modification time when the send began
+	 * @param size
+	 *            its length when the send began
+	 * @param checksum
+	 *            its CRC32C
+	 */
+	protected void checksumComputed(final File file, final long modified,
+			final long size, final int checksum) {
+		// nothing to remember by default
+	}
+
+	/**
+	 * Handles a framing negotiation request. Only the server answers it;
+	 * anywhere else it is treated as an invalid command.
+	 * 
+	 * @param args
+	 *            remaining tokens of the hello command
+	 */
+	protected void handleHello(final CommandLine args) {
+		handleOther(true);
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Reads one decimal line of the text framing, accepting both LF and CRLF,
+	 * and parses it as it arrives.
+	 * 
+	 * @return the value of the line
+	 * @throws EOFException
+	 *             if the peer closed the connection
+	 * @throws NumberFormatException
+	 *             if the line is not a number
+	 */
+	private long readTextNumber() throws IOException {
+		long value = 0;
+		int digits = 0;
+		boolean negative = false;
+		int c = dataIn.read();
+		while (c != '\n') {
+			if (c == -1) {
+				throw new EOFException("Connection closed by peer");
+			}
+			if (c >= '0' && c <= '9' && digits < 18) {
+				value = value * 10 + (c - '0');
+				digits++;
+			} else if (c == '-' && digits == 0 && !negative) {
+				negative = true;
+			} else if (c != '\r') {
+				throw new NumberFormatException("Invalid character " + c
+						+ " in frame line");
+			}
+			c = dataIn.read();
+		}
+		if (digits == 0) {
+			throw new NumberFormatException("Empty frame line");
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Reads one decimal line of the text framing that must fit an int.
+	 * 
+	 * @return the value of the line
+	 */
+	private int readTextInt() throws IOException {
+		final long value = readTextNumber();
+		if (value != (int) value) {
+			throw new NumberFormatException("Frame value " + value
+					+ " out of range");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Writes one decimal line of the text framing.
+	 * 
+	 * @param value
+	 *            the value to write
+	 */
+	private void writeTextLine(final long value) throws IOException {
+		lineBytes[lineBytes.length - 1] = '\n';
+		final int start = formatDecimal(value, lineBytes, lineBytes.length - 1);
+		dataOut.write(lineBytes, start, lineBytes.length - start);
+	}
+
+	/**
+	 * Writes a number's decimal digits so they end just before a position.
+	 * 
+	 * @param value
+	 *            the number
+	 * @param into
+	 *            receives the digits
+	 * @param end
+	 *            position after the last digit; 20 bytes before it must fit
+	 * @return position of the first digit, or of the sign
+	 */
+	private static int formatDecimal(final long value, final byte[] into,
+			final int end) {
+		int position = end;
+		long rest = value;
+		do {
+			into[--position] = (byte) ('0' + Math.abs(rest % 10));
+			rest /= 10;
+		} while (rest != 0);
+		if (value < 0) {
+			into[--position] = '-';
+		}
+		return position;
+	}
+
+	/**
+	 * Writes the 64-bit length that precedes streamed file data.
+	 * 
+	 * @param length
+	 *            number of payload bytes that follow
+	 */
+	private void writeLength(final long length) throws IOException {
+		if (shaper != null) {
+			shaper.begin(length);
+		}
+		if (binaryFraming) {
+			dataOut.writeLong(length);
+		} else {
+			writeTextLine(length);
+		}
+	}
+
+	/**
+	 * Writes a chunk of streamed file data in the current framing.
+	 * 
+	 * @param buffer
+	 *            chunk holder
+	 * @param amt
+	 *            number of bytes of buffer to write
+	 */
+	private void writePayload(final byte[] buffer, final int amt) throws IOException {
+		if (shaper != null) {
+			shaper.acquire(amt);
+		}
+		if (binaryFraming) {
+			dataOut.write(buffer, 0, amt);
+		} else {
+			for (int i = 0; i < amt; i++) {
+				writeTextLine(buffer[i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads a chunk of streamed file data in the current framing.
+	 * 
+	 * @param buffer
+	 *            chunk holder
+	 * @param amt
+	 *            number of bytes to read into buffer
+	 */
+	private void readPayload(final byte[] buffer, final int amt) throws IOException {
+		if (shaper != null) {
+			shaper.acquire(amt);
+		}
+		if (binaryFraming) {
+			dataIn.readFully(buffer, 0, amt);
+		} else {
+			for (int i = 0; i < amt; i++) {
+				buffer[i] = (byte) readTextInt();
+			}
+		}
+	}
+
+	/**
+	 * Sends file bytes with sendfile-style zero-copy transfers.
+	 * 
+	 * @param source
+	 *            open file
+	 * @param target
+	 *            the session's socket channel
+	 * @param offset
+	 *            offset of the first byte to send
+	 * @param end
+	 *            offset one past the last byte to send
+	 * @return offset one past the last byte sent
+	 */
+	private static long transferFile(final FileChannel source,
+			final SocketChannel target, final long offset, final long end)
+			throws IOException {
+		long position = offset;
+		while (position < end) {
+			final long sent = source.transferTo(position, end - position, target);
+			if (sent <= 0 && position >= source.size()) {
+				throw new EOFException("File shrank during transfer");
+			}
+			position += sent;
+			// lets the buffered fallback resume where this stopped
+			source.position(position);
+		}
+		return position;
+	}
+
+	/**
+	 * Sends file bytes from read-only memory mappings of the file, one window
+	 * at a time so files beyond 2 GB need no single huge mapping.
+	 * 
+	 * @param source
+	 *            open file
+	 * @param target
+	 *            the session's socket channel in binary framing, else null
+	 * @param position
+	 *            offset of the first byte still to send
+	 * @param end
+	 *            offset one past the last byte to send
+	 * @param checksum
+	 *            updated with the bytes sent, or null
+	 */
+	private void mapFile(final FileChannel source, final SocketChannel target,
+			final long position, final long end, final Checksum checksum)
+			throws IOException {
+		final byte[] buffer = target == null ? transferBuffer() : null;
+		long offset = position;
+		while (offset < end) {
+			final long window = Math.min(MMAP_WINDOW, end - offset);
+			if (offset + window > source.size()) {
+				throw new EOFException("File shrank during transfer");
+			}
+			final MappedByteBuffer mapped = source.map(
+					FileChannel.MapMode.READ_ONLY, offset, window);
+			if (checksum != null) {
+				checksum.update(mapped.duplicate());
+			}
+			if (target != null) {
+				while (mapped.hasRemaining()) {
+					target.write(mapped);
+				}
+			} else {
+				while (mapped.hasRemaining()) {
+					final int amt = Math.min(buffer.length, mapped.remaining());
+					mapped.get(buffer, 0, amt);
+					writePayload(buffer, amt);
+				}
+			}
+			offset += window;
+		}
+	}
+
+	/**
+	 * Sends file bytes by copying them through the chunk buffer.
+	 * 
+	 * @param source
+	 *            open file
+	 * @param position
+	 *            offset of the first byte still to send
+	 * @param end
+	 *            offset one past the last byte to send
+	 * @param checksum
+	 *            updated with the bytes sent, or null
+	 */
+	private void copyFile(final FileChannel source, final long position,
+			final long end, final Checksum checksum) throws IOException {
+		final byte[] buffer = transferBuffer();
+		final ByteBuffer chunk = ByteBuffer.wrap(buffer);
+		long offset = position;
+		while (offset < end) {
+			chunk.clear().limit((int) Math.min(buffer.length, end - offset));
+			final int amt = source.read(chunk, offset);
+			if (amt < 0) {
+				throw new EOFException("File shrank during transfer");
+			}
+			if (checksum != null) {
+				checksum.update(buffer, 0, amt);
+			}
+			writePayload(buffer, amt);
+			offset += amt;
+		}
+	}
+
+	/**
+	 * Announces the codec of the file data that follows writeLength and, if
+	 * the first chunk compresses well enough, sends the data deflated.
+	 * 
+	 * @param source
+	 *            the data to send
+	 * @param offset
+	 *            position of the first byte to send
+	 * @param length
+	 *            number of bytes to send
+	 * @param checksum
+	 *            updated with the bytes sent if they are deflated, or null
+	 * @return true if the data was sent, false if the caller must send it raw
+	 * @throws IOException
+	 */
+	private boolean deflate(final ChunkSource source, final long offset,
+			final long length, final Checksum checksum) throws IOException {
+		final byte[] buffer = transferBuffer();
+		final ByteBuffer chunk = ByteBuffer.wrap(buffer);
+		// room for a whole chunk even if it doesn't compress
+		final byte[] out = new byte[buffer.length + buffer.length / 16 + 64];
+		final Deflater deflater = new Deflater(compressionLevel);
+
+		try {
+			final long end = offset + length;
+			long position = offset;
+			int amt = readChunk(source, chunk, position, end);
+
+			// deflate the first chunk before deciding
+			final ByteArrayOutputStream sample = new ByteArrayOutputStream();
+			deflater.setInput(buffer, 0, amt);
+			for (int n; (n = deflater.deflate(out, 0, out.length,
+					Deflater.SYNC_FLUSH)) > 0;) {
+				sample.write(out, 0, n);
+			}
+			if (amt == 0 || sample.size() > amt * COMPRESSIBLE_RATIO) {
+				writeInt(CODEC_RAW);
+				return false;
+			}
+
+			writeInt(CODEC_DEFLATE);
+			writeBlock(sample.toByteArray(), sample.size());
+			if (checksum != null) {
+				checksum.update(buffer, 0, amt);
+			}
+			position += amt;
+			while (position < end) {
+				amt = readChunk(source, chunk, position, end);
+				if (checksum != null) {
+					checksum.update(buffer, 0, amt);
+				}
+				deflater.setInput(buffer, 0, amt);
+				for (int n; (n = deflater.deflate(out, 0, out.length,
+						Deflater.SYNC_FLUSH)) > 0;) {
+					writeBlock(out, n);
+				}
+				position += amt;
+			}
+			writeInt(0);
+
+			if (chatty()) {
+				chatter("Deflated %d bytes to %d.%n", length, deflater.getBytesWritten());
+			}
+			return true;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Receives deflated file data sent by {@link #deflate} and writes it to
+	 * the target at position, in the manner of {@link #storeRange}.
+	 * 
+	 * @return the error that stopped writing to the target, or null
+	 * @throws IOException
+	 *             if the stream is corrupt or does not hold length bytes
+	 */
+	private IOException inflateRange(final FileChannel target, final long position,
+			final long length) throws IOException {
+		final byte[] buffer = receiveBuffer();
+		final ByteBuffer chunk = ByteBuffer.wrap(buffer);
+		final Inflater inflater = new Inflater();
+		final Checksum checksum = checksum();
+		byte[] block = new byte[buffer.length];
+		IOException failure = target == null ? new IOException("No target") : null;
+		long offset = position;
+		final long end = position + length;
+
+		try {
+			for (int amt; (amt = readInt()) != 0;) {
+				if (amt < 0 || amt > MAX_BLOCK) {
+					throw new IOException("Invalid block length " + amt);
+				}
+				if (amt > block.length) {
+					block = new byte[amt];
+				}
+				readPayload(block, amt);
+				inflater.setInput(block, 0, amt);
+				for (int n; (n = inflater.inflate(buffer)) > 0;) {
+					if (n > end - offset) {
+						throw new IOException("More data than announced");
+					}
+					if (checksum != null) {
+						checksum.update(buffer, 0, n);
+					}
+					if (failure == null) {
+						try {
+							chunk.clear().limit(n);
+							while (chunk.hasRemaining()) {
+								target.write(chunk, offset + chunk.position());
+							}
+						} catch (IOException ioe) {
+							failure = ioe;
+						}
+					}
+					offset += n;
+				}
+			}
+		} catch (DataFormatException dfe) {
+			throw new IOException("Corrupt deflated data", dfe);
+		} finally {
+			inflater.end();
+		}
+
+		if (offset != end) {
+			throw new IOException(String.format("Inflated %d bytes, expected %d",
+					offset - position, length));
+		}
+		return checkTrailer(checksum, failure);
+	}
+
+	/**
+	 * Reads the next chunk of data to send into chunk's backing array.
+	 * 
+	 * @return number of bytes read
+	 */
+	private static int readChunk(final ChunkSource source, final ByteBuffer chunk,
+			final long position, final long end) throws IOException {
+		chunk.clear().limit((int) Math.min(chunk.capacity(), end - position));
+		while (chunk.hasRemaining()) {
+			if (source.read(chunk, position + chunk.position()) < 0) {
+				throw new EOFException("File shrank during transfer");
+			}
+		}
+		return chunk.position();
+	}
+
+	/**
+	 * Writes a block of deflated data: its length, then the bytes.
+	 */
+	private void writeBlock(final byte[] block, final int amt) throws IOException {
+		writeInt(amt);
+		writePayload(block, amt);
+	}
+
+	/**
+	 * Writes a codec marker or block length in the current framing.
+	 */
+	private void writeInt(final int value) throws IOException {
+		if (binaryFraming) {
+			dataOut.writeInt(value);
+		} else {
+			writeTextLine(value);
+		}
+	}
+
+	/**
+	 * Reads a codec marker or block length in the current framing.
+	 */
+	private int readInt() throws IOException {
+		return binaryFraming ? dataIn.readInt() : readTextInt();
+	}
+
+	/**
+	 * Once both ends agreed on CHECKSUM, every stream of file data ends with
+	 * the CRC32C of the plain bytes, computed while they are sent and checked
+	 * while they are received. Zero-copy sends need the value up front, so
+	 * they are only used for a whole file whose checksum is already known.
+	 * 
+	 * @return a fresh checksum if file data carries a trailer, else null
+	 */
+	private Checksum checksum() {
+		return features.contains(CHECKSUM) ? new CRC32C() : null;
+	}
+
+	/**
+	 * Ends a stream of file data with its checksum, if one is kept.
+	 */
+	private void writeTrailer(final Checksum checksum) throws IOException {
+		if (checksum != null) {
+			writeInt((int) checksum.getValue());
+		}
+	}
+
+	/**
+	 * Reads the checksum trailer of a stream of file data, if one is kept,
+	 * and compares it with the checksum of the bytes received.
+	 * 
+	 * @param checksum
+	 *            checksum of the received bytes, or null
+	 * @param failure
+	 *            error that already spoiled the transfer, or null
+	 * @return failure if given, else a mismatch error, else null
+	 */
+	private IOException checkTrailer(final Checksum checksum,
+			final IOException failure) throws IOException {
+		if (checksum == null) {
+			return failure;
+		}
+		final int expected = readInt();
+		final int received = (int) checksum.getValue();
+		if (failure == null && expected != received) {
+			return new IOException(String.format(
+					"Checksum mismatch: sent %08x, received %08x", expected, received));
+		}
+		return failure;
+	}
+
+	/**
+	 * Returns this endpoint's chunk buffer, allocating it on first use.
+	 * 
+	 * @return a buffer of bufferSize bytes
+	 */
+	private byte[] transferBuffer() {
+		if (transferBuffer == null || transferBuffer.length != bufferSize) {
+			transferBuffer = new byte[bufferSize];
+		}
+		return transferBuffer;
+	}
+
+	/**
+	 * Returns this endpoint's buffer for received file data, allocating it on
+	 * first use.
+	 * 
+	 * @return a buffer of bufferSize bytes
+	 */
+	private byte[] receiveBuffer() {
+		if (receiveBuffer == null || receiveBuffer.length != bufferSize) {
+			receiveBuffer = new byte[bufferSize];
+		}
+		return receiveBuffer;
 	}
 
 	// ----------------------------------------------------------------------
@@ -267,21 +1406,116 @@ import java.util.StringTokenizer;
 	 * Uploads a client-side file to the server.
 	 * 
 	 * @param filename
+	 * @param offset
+	 *            position to resume the upload from, 0 for the whole file
 	 */
-	abstract protected void handlePut(final String filename);
+	abstract protected void handlePut(final String filename, final long offset);
 
 	/**
 	 * Downloads a file from the server
 	 * 
 	 * @param filename
+	 * @param offset
+	 *            position of the first byte wanted
+	 * @param length
+	 *            number of bytes wanted, ERROR for the rest of the file
+	 */
+	abstract protected void handleGet(final String filename, final long offset,
+			final long length);
+
+	/**
+	 * Reports how much of an interrupted upload the server holds.
+	 * 
+	 * @param filename
+	 */
+	abstract protected void handleRest(final String filename);
+
+	/**
+	 * Resumes an interrupted upload. Only meaningful on the client.
+	 * 
+	 * @param filename
+	 */
+	protected void handleReput(final String filename) {
+		handleOther(true);
+	}
+
+	/**
+	 * Downloads a file over several parallel connections. Only meaningful on
+	 * the client.
+	 * 
+	 * @param filename
+	 * @param connections
+	 *            number of connections, ERROR for the default
+	 */
+	protected void handlePget(final String filename, final int connections) {
+		handleOther(true);
+	}
+
+	/**
+	 * Uploads a changed file by sending only what differs from the server's
+	 * copy. Without the delta feature this is an invalid command.
+	 * 
+	 * @param filename
+	 */
+	protected void handleDput(final String filename) {
+		handleOther(true);
+	}
+
+	/**
+	 * Reports the server's metrics. Without the metrics feature this is an
+	 * invalid command.
+	 */
+	protected void handleStats() {
+		handleOther(true);
+	}
+
+	/**
+	 * Uploads a file as content-addressed chunks, sending only those the
+	 * server does not hold yet. Without the chunks feature this is an invalid
+	 * command.
+	 * 
+	 * @param filename
+	 */
+	protected void handleCput(final String filename) {
+		handleOther(true);
+	}
+
+	/**
+	 * Downloads every file matching the given patterns over a pool of
+	 * connections. Only meaningful on the client.
+	 * 
+	 * @param args
+	 *            glob patterns
 	 */
-	abstract protected void handleGet(final String filename);
+	protected void handleMget(final CommandLine args) {
+		handleOther(true);
+	}
+
+	/**
+	 * Uploads every file matching the given patterns or held in the given
+	 * directories over a pool of connections. Only meaningful on the client.
+	 * 
+	 * @param args
+	 *            glob patterns or directories
+	 */
+	protected void handleMput(final CommandLine args) {
+		handleOther(true);
+	}
 
 	/**
 	 * Lists the files available on the server.
 	 */
 	abstract protected void handleLs();
 
+	/**
+	 * Lists name, size and modification time of the matching files on the
+	 * server, one page per round trip.
+	 * 
+	 * @param args
+	 *            optional glob, offset and limit
+	 */
+	abstract protected void handleList(final CommandLine args);
+
 	/**
 	 * Ends an FTP session, tearing down the server-client connection.
 	 */
@@ -1,10 +1,39 @@
 import java.io.*;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A pseudo-FTP client. Connects to server and enters a control loop which
@@ -17,6 +46,117 @@ import java.util.StringTokenizer;
 public class FTPClient extends FTPApplication {
 	protected final int port;
 	protected final InetAddress ip;
+	protected boolean requestBinary = true;
+	protected boolean requestPipelining = true;
+
+	/* Records which version of a server file a partial download is of */
+	private static final String VERSION_SUFFIX = PARTIAL_SUFFIX + ".version";
+
+	/* Asks a get for the file's version without claiming one */
+	private static final String ANY_VERSION = "*";
+
+	/* Replies a pipelined session may have outstanding before input stalls */
+	protected static final int PIPELINE_DEPTH = 64;
+
+	/* Commands that need earlier replies, or several round trips of their own */
+	private static final Set<String> SEQUENTIAL_COMMANDS = new HashSet<>(
+			Arrays.asList(REPUT, DPUT, CPUT, PGET, MGET, MPUT, EXIT));
+
+	/*
+	 * Commands built here from plain gets and puts, which the server never
+	 * sees by name, so the client times them itself
+	 */
+	private static final String[] CLIENT_COMMANDS = { PGET, MGET, MPUT, REPUT };
+
+	/* Latencies of the client's own commands, shown by stats */
+	private final Map<String, ServerMetrics.Histogram> timings =
+			new LinkedHashMap<>();
+
+	/*
+	 * Reply halves of pipelined commands, read in command order by the reply
+	 * thread; null while commands run in lock step
+	 */
+	private BlockingQueue<Runnable> replies;
+
+	/* Number of tagged replies read so far */
+	private long answered;
+
+	/* Parallel connections used by pget when none are given */
+	protected static final int DEFAULT_SEGMENTS = 4;
+
+	/* Smallest byte range worth a connection of its own */
+	private static final long MIN_SEGMENT = 1024 * 1024;
+
+	/* Connections used by mget and mput when none are configured */
+	protected static final int DEFAULT_WORKERS = 4;
+
+	/* Tries per file before a bulk transfer gives up on it */
+	private static final int BULK_ATTEMPTS = 3;
+
+	/* Bulk transfers print progress at most this often */
+	private static final long PROGRESS_INTERVAL = 1000000000L;
+
+	protected int workers = DEFAULT_WORKERS;
+
+	/**
+	 * Shared state of one mget or mput: the files still to transfer, how
+	 * often each was tried, and running totals for progress reports.
+	 */
+	private static final class Batch {
+		private final boolean upload;
+		private final int total;
+		private final BlockingQueue<String> pending;
+		private final ConcurrentMap<String, Integer> attempts =
+				new ConcurrentHashMap<>();
+		private final AtomicInteger done = new AtomicInteger();
+		private final AtomicInteger failed = new AtomicInteger();
+		private final AtomicLong bytes = new AtomicLong();
+		private final long started = System.nanoTime();
+		private long lastReport = started;
+
+		private Batch(final List<String> names, final boolean upload) {
+			this.upload = upload;
+			this.total = names.size();
+			this.pending = new LinkedBlockingQueue<>(names);
+		}
+
+		/**
+		 * Records a failed try and queues the file again unless it is out of
+		 * tries.
+		 */
+		private void retry(final String name, final Object cause) {
+			final int tries = attempts.merge(name, 1, Integer::sum);
+			if (tries < BULK_ATTEMPTS) {
+				pending.add(name);
+			} else {
+				System.err.printf("Giving up on %s after %d tries: %s%n", name,
+						tries, cause);
+				failed.incrementAndGet();
+				report(false);
+			}
+		}
+
+		/**
+		 * Records a transferred file.
+		 */
+		private void succeeded(final long count) {
+			done.incrementAndGet();
+			bytes.addAndGet(count);
+			report(false);
+		}
+
+		/**
+		 * Prints progress if forced or if the last report is old enough.
+		 */
+		private synchronized void report(final boolean force) {
+			final long now = System.nanoTime();
+			if (force || now - lastReport >= PROGRESS_INTERVAL) {
+				lastReport = now;
+				System.out.printf("%d/%d files, %d failed, %d bytes%n", done.get(),
+						total, failed.get(), bytes.get());
+			}
+		}
+	}
 
 	// ----------------------------------------------------------------------
 	// CONSTRUCTOR
@@ -38,6 +178,9 @@ public class FTPClient extends FTPApplication {
 		super(fileBase);
 		this.port = port;
 		this.ip = ip;
+		for (final String command : CLIENT_COMMANDS) {
+			timings.put(command, new ServerMetrics.Histogram());
+		}
 		System.out.printf("Working out of %s%n", this.fileBase);
 	}
 
@@ -53,12 +196,34 @@ public class FTPClient extends FTPApplication {
 		System.out.printf("\tWhere valid options include: %n");
 		System.out.printf("\t\t -h \t Prints usage %n");
 		System.out.printf("\t\t -d \t File directory %n");
+		System.out.printf("\t\t -t \t Text framing only %n");
+		System.out.printf("\t\t -b \t Transfer buffer size in bytes %n");
+		System.out.printf("\t\t -z \t Disable zero-copy sends %n");
+		System.out.printf("\t\t -m \t Memory-map files from this size, 0 to disable %n");
+		System.out.printf("\t\t -w \t Connections used by mget and mput %n");
+		System.out.printf("\t\t -x \t Disable compression %n");
+		System.out.printf("\t\t -s \t Wait for each reply, no pipelining %n");
 	}
 
 	// ----------------------------------------------------------------------
 	// INHERITED, PROTECTED METHODS
 	// ----------------------------------------------------------------------
 
+	/**
+	 * Runs a command, timing it if it is one of the client's own.
+	 */
+	@Override
+	protected String processCommand(final CommandLine args) {
+		final long started = System.nanoTime();
+		final String command = super.processCommand(args);
+		final ServerMetrics.Histogram timing = command == null ? null
+				: timings.get(command);
+		if (timing != null) {
+			timing.record(System.nanoTime() - started);
+		}
+		return command;
+	}
+
 	/**
 	 * Checks that the specified file is valid, then transmits the file's name,
 	 * size, and data. After transmission, the client waits for a response from
@@ -66,63 +231,369 @@ public class FTPClient extends FTPApplication {
 	 * 
 	 * @param filename
 	 *            Name of the file to send.
+	 * @param offset
+	 *            position to resume from; needs a server that grants ranges
 	 */
-	protected void handlePut(final String filename) {
+	protected void handlePut(final String filename, final long offset) {
 		// confirm existence of file
 		final File file = new File(getFilePath(filename));
-		if (!file.exists()) {
+		if (!file.isFile()) {
 			System.err.printf("%s does not exist.%n", file);
 			handleOther(false);
+		} else if (offset != 0 && !features.contains(RANGES)) {
+			System.err.printf("Server cannot resume uploads.%n");
+			handleOther(false);
 		} else {
 			try {
-				// send filename
-				System.out.printf("Sending filename ... ");
-				sendMessage(MessageFormat.format("{0} {1}", PUT, filename));
-				System.out.printf("done.%n");
-
-				// send data
-				final byte[] data = readFile(file);
-				sendData(data);
-
-				// await reply
-				System.out.printf("Server reply: ");
-				String reply = receiveMessage();
-				System.out.printf("%s%n", reply);
+				sendUpload(file, filename, offset);
 			} catch (IOException ioe) {
-				System.err.printf("%s No reply from server%n", ioe); // change made here
+				// a busy server refuses and hangs up mid-upload; its reply
+				// may still be waiting to be read
+				System.err.printf("%s Upload interrupted%n", ioe);
 			}
+			expectReply(() -> {
+				try {
+					// await reply
+					System.out.printf("Server reply: %s%n", receiveMessage());
+				} catch (IOException ioe) {
+					System.err.printf("%s No reply from server%n", ioe); // change made here
+				}
+			});
+		}
+	}
+
+	/**
+	 * Asks the server how much of an interrupted upload it holds, then sends
+	 * the rest of the file.
+	 * 
+	 * @param filename
+	 *            Name of the file to send.
+	 */
+	protected void handleReput(final String filename) {
+		if (!features.contains(RANGES)) {
+			System.err.printf("Server cannot resume uploads, sending all.%n");
+			handlePut(filename, 0);
+			return;
+		}
+		try {
+			sendMessage(REST + " " + filename);
+			awaitReply();
+			final long offset = Long.parseLong(receiveMessage());
+			// the server prompts again before it takes the put
+			awaitPrompt();
+			System.out.printf("Resuming at byte %d.%n", offset);
+			handlePut(filename, offset);
+		} catch (IOException ioe) {
+			System.err.printf("%s No reply from server%n", ioe);
+		} catch (NumberFormatException nfe) {
+			System.err.printf("Invalid length specified: %s%n", nfe);
 		}
 	}
 
+	/**
+	 * Uploads a changed file as a delta against the server's copy: only the
+	 * bytes the server does not already hold, in whole blocks, are sent.
+	 * Falls back to a plain put if the server does not take deltas.
+	 * 
+	 * @param filename
+	 *            Name of the file to send.
+	 */
+	protected void handleDput(final String filename) {
+		final File file = new File(getFilePath(filename));
+		if (!file.isFile()) {
+			System.err.printf("%s does not exist.%n", file);
+			handleOther(false);
+			return;
+		} else if (!features.contains(DELTA)) {
+			System.err.printf("Server cannot take deltas, sending all.%n");
+			handlePut(filename, 0);
+			return;
+		}
+
+		try {
+			sendMessage(DPUT + " " + filename);
+			awaitReply();
+			final byte[] signature = receiveData();
+			if (Arrays.equals(signature, SERVER_BUSY.getBytes(StandardCharsets.UTF_8))) {
+				// turned away before any data was sent
+				System.out.printf("Server reply: %s%n", SERVER_BUSY);
+				return;
+			}
+			final long literal = FileDelta.diff(file, signature, this::sendData);
+			System.out.printf("Sent %d of %d bytes as literal data.%n", literal,
+					file.length());
+
+			// await reply
+			System.out.printf("Server reply: %s%n", receiveMessage());
+		} catch (IOException ioe) {
+			System.err.printf("%s No reply from server%n", ioe);
+		}
+	}
+
+	/**
+	 * Uploads a file as content-defined chunks, sending only the chunks the
+	 * server does not already hold. Without the chunks feature the whole file
+	 * is sent.
+	 * 
+	 * @param filename
+	 *            Name of the file to upload.
+	 */
+	protected void handleCput(final String filename) {
+		final File file = new File(getFilePath(filename));
+		if (!file.isFile()) {
+			System.err.printf("%s does not exist.%n", file);
+			handleOther(false);
+			return;
+		} else if (!features.contains(CHUNKS)) {
+			System.err.printf("Server does not store chunks, sending all.%n");
+			handlePut(filename, 0);
+			return;
+		}
+
+		try {
+			System.out.printf("Server reply: %s%n", chunkedUpload(file, filename));
+		} catch (IOException ioe) {
+			System.err.printf("%s No reply from server%n", ioe);
+		}
+	}
+
+	/**
+	 * Prints the server's metrics, followed by the latencies of the commands
+	 * the client runs on its own.
+	 */
+	protected void handleStats() {
+		if (!features.contains(METRICS)) {
+			System.err.printf("Server does not report metrics.%n");
+			printTimings();
+			handleOther(false);
+			return;
+		}
+		sendMessage(STATS);
+		expectReply(() -> {
+			try {
+				System.out.print(receiveMessage());
+			} catch (IOException ioe) {
+				System.err.printf("%s No reply from server%n", ioe);
+			}
+			printTimings();
+		});
+	}
+
+	/**
+	 * Prints the latencies of the client's own commands that have run.
+	 */
+	final private void printTimings() {
+		boolean header = false;
+		for (final Map.Entry<String, ServerMetrics.Histogram> timing
+				: timings.entrySet()) {
+			if (timing.getValue().count() == 0) {
+				continue;
+			}
+			if (!header) {
+				System.out.printf("client commands:%n%s%n",
+						ServerMetrics.latencyHeader());
+				header = true;
+			}
+			System.out.printf("%s%n", ServerMetrics.latencyLine(
+					timing.getKey(), timing.getValue()));
+		}
+	}
+
+	/**
+	 * Prints how much of an interrupted upload the server holds.
+	 * 
+	 * @param filename
+	 *            Name of the file being uploaded.
+	 */
+	protected void handleRest(final String filename) {
+		if (!features.contains(RANGES)) {
+			System.err.printf("Server cannot resume uploads.%n");
+			handleOther(false);
+			return;
+		}
+		sendMessage(REST + " " + filename);
+		expectReply(() -> {
+			try {
+				System.out.printf("Server holds %s bytes.%n", receiveMessage());
+			} catch (IOException ioe) {
+				System.err.printf("%s No reply from server%n", ioe);
+			}
+		});
+	}
+
 	/**
 	 * Sends the request to the server, receives the length of the file (if it
-	 * exists), and receives the file's data.
+	 * exists), and receives the file's data. A whole-file download goes to a
+	 * partial file first; if one is left from an interrupted download, only
+	 * the missing bytes are requested. An explicit range is written into the
+	 * local file at the same position.
 	 * 
 	 * @param filename
 	 *            Name of the file to receive.
+	 * @param offset
+	 *            position of the first byte wanted
+	 * @param length
+	 *            number of bytes wanted, ERROR for the rest of the file
 	 */
-	protected void handleGet(final String filename) {
+	protected void handleGet(final String filename, final long offset,
+			final long length) {
+		final long start = requestDownload(filename, offset, length);
+		expectReply(() -> {
+			try {
+				// in case the file doesn't exist on the server side
+				final long count = receiveDownload(filename, start,
+						offset > 0 || length >= 0);
+				if (count == ERROR) {
+					System.err.printf("%s does not exist on the server.%n", filename);
+				} else if (count == BUSY) {
+					System.err.printf("Server busy, %s not sent.%n", filename);
+				}
+			} catch (IOException e) {
+				System.err.printf("%s File does not exist%n", e);
+			} catch (NumberFormatException nfe) {
+				System.err.printf("Invalid length specified: %s%n", nfe);
+			}
+		});
+	}
+
+	/**
+	 * Downloads every file on the server matching one of the patterns. The
+	 * names are collected page by page over this connection, then fetched by
+	 * a pool of connections; see {@link #transferAll}.
+	 * 
+	 * @param args
+	 *            glob patterns
+	 */
+	protected void handleMget(final CommandLine args) {
+		if (!args.hasMoreTokens()) {
+			System.err.printf("Usage: %s <pattern> ...%n", MGET);
+			handleOther(false);
+			return;
+		}
+
+		final Set<String> names = new LinkedHashSet<>();
 		try {
-			// request file
-			sendMessage(MessageFormat.format("{0} {1}", GET, filename));
+			boolean first = true;
+			while (args.hasMoreTokens()) {
+				final String pattern = args.nextToken();
+				long next = 0;
+				do {
+					if (!first) {
+						// the server prompts again between our requests
+						awaitPrompt();
+					}
+					first = false;
+					sendMessage(LIST + " " + pattern + " " + next + " "
+							+ DirectoryListing.MAX_PAGE);
+					awaitReply();
+					final DataInputStream page = new DataInputStream(
+							new ByteArrayInputStream(receiveData()));
+					final int count = page.readInt();
+					next = page.readLong();
+					if (count == ERROR) {
+						System.err.printf("Listing %s failed on the server.%n", pattern);
+					}
+					for (int i = 0; i < count; i++) {
+						final String name = page.readUTF();
+						page.readLong();
+						page.readLong();
+						// skip uploads still in progress
+						if (!name.endsWith(PARTIAL_SUFFIX)) {
+							names.add(name);
+						}
+					}
+				} while (next >= 0);
+			}
+		} catch (IOException e) {
+			System.err.printf("%s Error with request listening%n", e);
+			return;
+		}
 
-			// receive file length
-			System.out.printf("Receiving length ... ");
-			final String input = receiveMessage();
-			//final long length = (input != null) ? Long.parseLong(input) : ERROR;
-			System.out.printf("done.%n");
+		transferAll(new ArrayList<>(names), false, true);
+	}
+
+	/**
+	 * Uploads every local file matching one of the patterns, or held directly
+	 * in one of the named directories, over a pool of connections; see
+	 * {@link #transferAll}. Files are stored on the server under their own
+	 * names.
+	 * 
+	 * @param args
+	 *            glob patterns or directories, relative to the file base
+	 */
+	protected void handleMput(final CommandLine args) {
+		if (!args.hasMoreTokens()) {
+			System.err.printf("Usage: %s <pattern|directory> ...%n", MPUT);
+			handleOther(false);
+			return;
+		}
 
-			// in case the file doesn't exist on the server side
+		final Set<String> paths = new LinkedHashSet<>();
+		while (args.hasMoreTokens()) {
+			final String pattern = args.nextToken();
+			final boolean whole = new File(getFilePath(pattern)).isDirectory();
+			// a glob applies to the names in its parent directory
+			final Path parent = whole ? Paths.get(pattern)
+					: Paths.get(pattern).getParent();
+			final String prefix = parent == null ? ""
+					: parent + File.separator;
+			final Path directory = Paths.get(getFilePath(prefix));
+			try (DirectoryStream<Path> matches = whole
+					? Files.newDirectoryStream(directory)
+					: Files.newDirectoryStream(directory,
+							Paths.get(pattern).getFileName().toString())) {
+				for (final Path match : matches) {
+					final String name = match.getFileName().toString();
+					if (Files.isRegularFile(match)
+							&& !name.endsWith(PARTIAL_SUFFIX)
+							&& !name.endsWith(VERSION_SUFFIX)) {
+						paths.add(prefix + name);
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				System.err.printf("Cannot expand %s: %s%n", pattern, e);
+			}
+		}
 
-				// GET DATA
-				final byte[] data = receiveData();
+		transferAll(new ArrayList<>(paths), true, false);
+	}
 
-				// SAVE DATA
-				storeFile(data, filename);
+	/**
+	 * Downloads a file as disjoint byte ranges fetched in parallel over
+	 * separate connections. Each range is written straight into its place in
+	 * the local file with positional writes; the aggregate throughput is
+	 * reported at the end. Falls back to a plain get if the server does not
+	 * serve ranges.
+	 * 
+	 * @param filename
+	 *            Name of the file to receive.
+	 * @param connections
+	 *            number of connections, ERROR for DEFAULT_SEGMENTS
+	 */
+	protected void handlePget(final String filename, final int connections) {
+		if (!features.contains(RANGES)) {
+			System.err.printf("Server cannot send ranges, downloading normally.%n");
+			handleGet(filename, 0, ERROR);
+			return;
+		}
 
+		try {
+			// an empty range tells us the size
+			sendMessage(GET + " " + filename + " 0 0");
+			awaitReply();
+			final long size = Long.parseLong(receiveMessage());
+			if (size == ERROR) {
+				System.err.printf("%s does not exist on the server.%n", filename);
+				return;
+			}
+			storeRange(null, 0, readLength());
 
+			downloadSegments(filename, size,
+					connections > 0 ? connections : DEFAULT_SEGMENTS);
 		} catch (IOException e) {
 			System.err.printf("%s File does not exist%n", e);
+		} catch (NumberFormatException nfe) {
+			System.err.printf("Invalid length specified: %s%n", nfe);
 		}
 	}
 
@@ -131,25 +602,68 @@ public class FTPClient extends FTPApplication {
 	 * there are, and receives each filename.
 	 */
 	protected void handleLs() {
-		try {
-			// request listing
-			sendMessage(LS);
+		// request listing
+		sendMessage(LS);
 
-			// receive number of files
-			final String input = receiveMessage();
-			//final int fileAmt = input != null ? Integer.parseInt(input) : ERROR;
+		expectReply(() -> {
+			try {
+				// receive number of files
+				final String input = receiveMessage();
+				//final int fileAmt = input != null ? Integer.parseInt(input) : ERROR;
 
-			// receive and print names of files
-			if (input != null) {
-				for (int i = 0; i < Integer.parseInt(input); i++) {
-					System.out.printf("\t%s%n", receiveMessage());
+				// receive and print names of files
+				if (input != null) {
+					for (int i = 0; i < Integer.parseInt(input); i++) {
+						System.out.printf("\t%s%n", receiveMessage());
+					}
 				}
+
+			} catch (IOException e) {
+				System.err.printf("%s Error with request listening%n", e);
+				//e.printStackTrace();
 			}
+		});
+	}
 
-		} catch (IOException e) {
-			System.err.printf("%s Error with request listening%n", e);
-			//e.printStackTrace();
+	/**
+	 * Sends a batched listing request and prints the page the server returns
+	 * in a single frame: size, modification time and name of each file.
+	 * 
+	 * @param args
+	 *            optional glob, offset and limit, passed through as typed
+	 */
+	protected void handleList(final CommandLine args) {
+		final StringBuilder request = new StringBuilder(LIST);
+		while (args.hasMoreTokens()) {
+			request.append(' ').append(args.nextToken());
 		}
+
+		sendMessage(request.toString());
+		expectReply(() -> {
+			try {
+				final DataInputStream page = new DataInputStream(
+						new ByteArrayInputStream(receiveData()));
+				final int count = page.readInt();
+				final long next = page.readLong();
+
+				if (count == ERROR) {
+					System.err.printf("Listing failed on the server.%n");
+				} else {
+					for (int i = 0; i < count; i++) {
+						final String name = page.readUTF();
+						final long size = page.readLong();
+						final long modified = page.readLong();
+						System.out.printf("\t%12d  %tF %<tT  %s%n", size, modified,
+								name);
+					}
+					if (next >= 0) {
+						System.out.printf("\t... more from offset %d%n", next);
+					}
+				}
+			} catch (IOException e) {
+				System.err.printf("%s Error with request listening%n", e);
+			}
+		});
 	}
 
 	/**
@@ -160,7 +674,10 @@ public class FTPClient extends FTPApplication {
 	 *            received.
 	 */
 	final protected void handleOther(final boolean invalidCmd) {
-		sendMessage("%n");
+		// only a prompting server needs a command to prompt again
+		if (!features.contains(PIPELINE)) {
+			sendMessage("%n");
+		}
 		if (invalidCmd) {
 			System.err.printf("Invalid command.%n");
 		}
@@ -184,16 +701,18 @@ public class FTPClient extends FTPApplication {
 	 * 
 	 * @return true if connection was established successfully.
 	 */
-	// Private added instead of public 
-	final private boolean connect() {
+	// Protected added instead of public 
+	final protected boolean connect() {
 		boolean success = false;
 
 		try {
-			System.out.printf("Connecting to %s:%d ... ", ip, port);
-			socket  =  new Socket(ip, port);
+			chatter("Connecting to %s:%d ... ", ip, port);
+			// channel-backed so uploads can use zero-copy and mapped sends
+			socket  =  SocketChannel.open(new InetSocketAddress(ip, port)).socket();
 			setUpIO();
+			chatter("Established.%n");
+			negotiateFraming();
 			success = true;
-			System.out.printf("Established.%n");
 
 		} catch (IOException e) {
 			System.err.printf("%s printStactTrace%n", e);
@@ -202,33 +721,717 @@ public class FTPClient extends FTPApplication {
 		return success;
 	}
 
+	/**
+	 * Sends a file, or the rest of it from offset, and returns the server's
+	 * reply.
+	 * 
+	 * @param file
+	 *            the local file
+	 * @param filename
+	 *            name to store it under on the server
+	 * @param offset
+	 *            position to resume from
+	 * @return the server's reply
+	 * @throws IOException
+	 */
+	final protected String upload(final File file, final String filename,
+			final long offset) throws IOException {
+		sendUpload(file, filename, offset);
+		awaitReply();
+		return receiveMessage();
+	}
+
+	/**
+	 * Describes a file's chunks to the server, sends the ones it asks for,
+	 * and returns its reply.
+	 * 
+	 * @param file
+	 *            the local file
+	 * @param filename
+	 *            name to store it under on the server
+	 * @return the server's reply
+	 * @throws IOException
+	 */
+	final private String chunkedUpload(final File file, final String filename)
+			throws IOException {
+		final List<ChunkStore.Chunk> chunks = ChunkStore.split(file);
+		sendMessage(CPUT + " " + filename);
+		sendData(ChunkStore.describe(chunks));
+		awaitReply();
+
+		// the server answers with the indices of the chunks it lacks
+		final DataInputStream wanted = new DataInputStream(
+				new ByteArrayInputStream(receiveData()));
+		final int count = wanted.readInt();
+		long sent = 0;
+		try (FileChannel in = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			for (int i = 0; i < count; i++) {
+				final ChunkStore.Chunk chunk = chunks.get(wanted.readInt());
+				final ByteBuffer data = ByteBuffer.allocate(chunk.length);
+				while (data.hasRemaining()) {
+					if (in.read(data, chunk.offset + data.position()) < 0) {
+						throw new EOFException(file + " shrank during transfer");
+					}
+				}
+				sendData(data.array());
+				sent += chunk.length;
+			}
+		}
+		chatter("Sent %d of %d bytes as new chunks.%n", sent, file.length());
+		return receiveMessage();
+	}
+
+	/**
+	 * Lists the server's files without printing them.
+	 * 
+	 * @return number of files listed
+	 * @throws IOException
+	 */
+	final protected int list() throws IOException {
+		sendMessage(LS);
+		awaitReply();
+		final int count = Integer.parseInt(receiveMessage());
+		for (int i = 0; i < count; i++) {
+			receiveMessage();
+		}
+		return count;
+	}
+
+	/**
+	 * Sends the put command and the file data; the reply is left for the
+	 * caller.
+	 * 
+	 * @throws IOException
+	 */
+	final private void sendUpload(final File file, final String filename,
+			final long offset) throws IOException {
+		final long start = Math.max(0, Math.min(offset, file.length()));
+
+		// send filename
+		chatter("Sending filename ... ");
+		sendMessage(start == 0 ? PUT + " " + filename
+				: PUT + " " + filename + " " + start);
+		chatter("done.%n");
+
+		// stream data
+		sendFile(file, start, file.length() - start);
+	}
+
+	/**
+	 * Receives a file or a range of it; see {@link #handleGet}.
+	 * 
+	 * @param filename
+	 *            Name of the file to receive.
+	 * @param offset
+	 *            position of the first byte wanted
+	 * @param length
+	 *            number of bytes wanted, ERROR for the rest of the file
+	 * @return number of bytes received, ERROR if the server has no such file,
+	 *         BUSY if it turned the transfer away
+	 * @throws IOException
+	 */
+	final protected long download(final String filename, final long offset,
+			final long length) throws IOException {
+		final long start = requestDownload(filename, offset, length);
+		awaitReply();
+		return receiveDownload(filename, start, offset > 0 || length >= 0);
+	}
+
+	/**
+	 * Sends the get command, resuming from a partial file if one is left.
+	 * A whole-file get also asks for the version of the file, and a resume
+	 * names the version the partial file was taken from, so the server sends
+	 * the whole file again if it has changed since.
+	 * 
+	 * @return position of the first byte requested
+	 */
+	final private long requestDownload(final String filename, final long offset,
+			final long length) {
+		if (offset > 0 || length >= 0) {
+			sendMessage(GET + " " + filename + " " + offset + " " + length);
+			return offset;
+		}
+		if (!features.contains(RANGES)) {
+			// without a version to check it against, a partial file is useless
+			sendMessage(MessageFormat.format("{0} {1}", GET, filename));
+			return 0;
+		}
+
+		final File partialFile = new File(getFilePath(filename + PARTIAL_SUFFIX));
+		final String version = partialFile.isFile() ? partialVersion(filename)
+				: null;
+		final long start = version == null ? 0 : partialFile.length();
+		if (start > 0) {
+			chatter("Resuming at byte %d.%n", start);
+		}
+		sendMessage(GET + " " + filename + " " + start + " " + ERROR + " "
+				+ (version == null ? ANY_VERSION : version));
+		return start;
+	}
+
+	/**
+	 * Receives the reply to a get sent by {@link #requestDownload}.
+	 * 
+	 * @param start
+	 *            position of the first byte requested
+	 * @param ranged
+	 *            true to write into the file itself rather than a partial file
+	 * @return number of bytes received, ERROR if the server has no such file,
+	 *         BUSY if it turned the transfer away
+	 * @throws IOException
+	 */
+	final private long receiveDownload(final String filename, long start,
+			final boolean ranged) throws IOException {
+		final String partial = filename + PARTIAL_SUFFIX;
+
+		// receive file length
+		chatter("Receiving length ... ");
+		final long size = Long.parseLong(receiveMessage());
+		chatter("done.%n");
+
+		if (size == ERROR || size == BUSY) {
+			return size;
+		}
+		// a whole-file get asked for the version being sent
+		final String version = !ranged && features.contains(RANGES)
+				? receiveMessage() : null;
+		final long count = readLength();
+		if (start > 0 && count == size) {
+			// the file changed, or the server could not honour the offset
+			start = 0;
+		}
+
+		// GET & SAVE DATA, one chunk at a time
+		if (ranged) {
+			storeFile(filename, start, count);
+		} else {
+			final File versionFile = new File(getFilePath(filename + VERSION_SUFFIX));
+			if (version != null && start == 0) {
+				// recorded before any data, so an interrupted download can resume
+				Files.write(versionFile.toPath(),
+						version.getBytes(StandardCharsets.UTF_8));
+			}
+			storeFile(partial, start, count);
+			Files.move(new File(getFilePath(partial)).toPath(),
+					new File(getFilePath(filename)).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			versionFile.delete();
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the version of the server's file a partial download was taken
+	 * from.
+	 * 
+	 * @param filename
+	 *            name of the file being downloaded
+	 * @return the version, or null if none was recorded
+	 */
+	final private String partialVersion(final String filename) {
+		final File versionFile = new File(getFilePath(filename + VERSION_SUFFIX));
+		if (!versionFile.isFile()) {
+			return null;
+		}
+		try {
+			return new String(Files.readAllBytes(versionFile.toPath()),
+					StandardCharsets.UTF_8).trim();
+		} catch (IOException ioe) {
+			System.err.printf("Could not read %s: %s%n", versionFile, ioe);
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the reply half of a command. In lock step that happens right away;
+	 * in a pipelined session the reply is queued behind the replies to
+	 * earlier commands, so the next command can go out at once.
+	 * 
+	 * @param reply
+	 *            reads and reports the reply, handling its own errors
+	 */
+	final private void expectReply(final Runnable reply) {
+		final BlockingQueue<Runnable> queue = replies;
+		final Runnable tagged = () -> {
+			try {
+				awaitReply();
+			} catch (IOException ioe) {
+				System.err.printf("%s No reply from server%n", ioe);
+				if (queue != null) {
+					// later replies can't be matched up either
+					terminate();
+				}
+				return;
+			}
+			reply.run();
+		};
+
+		if (queue == null) {
+			tagged.run();
+		} else {
+			try {
+				queue.put(tagged);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Reads the tag a pipelined server sends ahead of each reply and checks
+	 * that replies arrive in command order. Does nothing in lock step.
+	 * 
+	 * @throws IOException
+	 *             if the tag is missing or out of order
+	 */
+	final private void awaitReply() throws IOException {
+		if (features.contains(PIPELINE)) {
+			final String tag = receiveMessage();
+			answered++;
+			if (!tag.equals(String.valueOf(answered))) {
+				throw new IOException(MessageFormat.format(
+						"Reply tagged {0} where {1} was expected", tag,
+						String.valueOf(answered)));
+			}
+		}
+	}
+
+	/**
+	 * Reads the prompt the server sends before each command. Pipelined
+	 * servers don't prompt.
+	 * 
+	 * @throws IOException
+	 */
+	final protected void awaitPrompt() throws IOException {
+		if (!features.contains(PIPELINE)) {
+			receiveMessage();
+		}
+	}
+
+	/**
+	 * Transfers a batch of files over a pool of up to workers connections.
+	 * This connection is one of them, so the session never sits idle long
+	 * enough to time out; the others are opened for the batch and closed
+	 * after it. Each connection takes the next file off a shared queue, so
+	 * small files don't wait on large ones. A file that fails is queued again
+	 * until it has had BULK_ATTEMPTS tries, and a connection that fails is
+	 * replaced. Progress is printed as files complete.
+	 * 
+	 * @param names
+	 *            files to transfer, relative to the file base
+	 * @param upload
+	 *            true to put the files, false to get them
+	 * @param awaitingPrompt
+	 *            true if the server has prompted since this connection's
+	 *            last command
+	 */
+	final private void transferAll(final List<String> names, final boolean upload,
+			final boolean awaitingPrompt) {
+		final Batch batch = new Batch(names, upload);
+		final int count = Math.max(1, Math.min(workers, names.size()));
+		final ExecutorService pool = Executors.newFixedThreadPool(count);
+		System.out.printf("%s %d files over %d connections%n",
+				upload ? "Sending" : "Receiving", batch.total, count);
+
+		// per-file chatter would bury the progress reports
+		final boolean wasQuiet = quiet;
+		quiet = true;
+		try {
+			final List<Future<?>> results = new ArrayList<>();
+			results.add(pool.submit(() -> drain(batch, this, awaitingPrompt)));
+			for (int i = 1; i < count; i++) {
+				results.add(pool.submit(() -> drain(batch, null, false)));
+			}
+			for (final Future<?> result : results) {
+				result.get();
+			}
+		} catch (ExecutionException ee) {
+			System.err.printf("Worker failed: %s%n", ee.getCause());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
+			quiet = wasQuiet;
+		}
+
+		// left behind if every connection was lost
+		for (String name; (name = batch.pending.poll()) != null;) {
+			System.err.printf("Not transferred: %s%n", name);
+			batch.failed.incrementAndGet();
+		}
+
+		batch.report(true);
+		final double seconds = Math.max(System.nanoTime() - batch.started, 1) / 1e9;
+		System.out.printf("%d bytes in %.2f s (%.2f MB/s)%n", batch.bytes.get(),
+				seconds, batch.bytes.get() / 1e6 / seconds);
+	}
+
+	/**
+	 * Transfers files off the batch queue until it is empty. A worker without
+	 * a connection opens its own and replaces it if it fails; this session's
+	 * connection can't be replaced, so its worker stops instead. On return
+	 * this session's connection has exactly one prompt waiting, as the
+	 * control loop expects.
+	 * 
+	 * @param batch
+	 *            the shared batch
+	 * @param session
+	 *            this session's connection, or null to open one
+	 * @param awaitingPrompt
+	 *            true if a prompt must be read before the first command
+	 */
+	final private void drain(final Batch batch, final FTPClient session,
+			boolean awaitingPrompt) {
+		FTPClient connection = session;
+		String name;
+		while ((name = batch.pending.poll()) != null) {
+			if (connection == null) {
+				connection = openWorker();
+				if (connection == null) {
+					batch.pending.add(name);
+					return;
+				}
+				awaitingPrompt = true;
+			}
+
+			try {
+				if (awaitingPrompt) {
+					connection.awaitPrompt();
+				}
+				// every command earns a fresh prompt
+				awaitingPrompt = true;
+
+				final File file = new File(getFilePath(name));
+				final String reply;
+				final long count;
+				if (batch.upload) {
+					reply = connection.features.contains(CHUNKS)
+							? connection.chunkedUpload(file, file.getName())
+							: connection.upload(file, file.getName(), 0);
+					count = reply.equals(PUT_OK) ? file.length() : ERROR;
+				} else {
+					count = connection.download(name, 0, ERROR);
+					reply = count == ERROR ? "does not exist on the server"
+							: count == BUSY ? SERVER_BUSY : null;
+				}
+
+				if (count < 0) {
+					batch.retry(name, reply);
+				} else {
+					batch.succeeded(count);
+				}
+			} catch (IOException | NumberFormatException e) {
+				// the connection may be out of step with the server
+				batch.retry(name, e);
+				if (connection == session) {
+					return;
+				}
+				connection.terminate();
+				connection = null;
+			}
+		}
+
+		if (connection == session && !awaitingPrompt
+				&& !features.contains(PIPELINE)) {
+			// an empty command earns the prompt the control loop waits for
+			sendMessage("");
+		} else if (connection != null && connection != session) {
+			connection.handleExit();
+		}
+	}
+
+	/**
+	 * Opens a quiet connection for a bulk transfer worker.
+	 * 
+	 * @return the connection, or null if it could not be established
+	 */
+	final private FTPClient openWorker() {
+		final FTPClient worker = new FTPClient(port, ip, fileBase);
+		worker.quiet = true;
+		worker.requestBinary = requestBinary;
+		worker.requestPipelining = requestPipelining;
+		return worker.connect() ? worker : null;
+	}
+
+	/**
+	 * Splits a download into ranges, fetches them concurrently and renames
+	 * the result into place. A failed download is deleted rather than kept
+	 * for resuming, since its missing ranges need not be at the end.
+	 * 
+	 * @param filename
+	 *            Name of the file to receive.
+	 * @param size
+	 *            size of the file on the server
+	 * @param connections
+	 *            upper bound on parallel connections
+	 */
+	final private void downloadSegments(final String filename, final long size,
+			final int connections) {
+		final int segments = (int) Math.max(1, Math.min(connections,
+				(size + MIN_SEGMENT - 1) / MIN_SEGMENT));
+		final File partial = new File(getFilePath(filename + PARTIAL_SUFFIX));
+		final ExecutorService workers = Executors.newFixedThreadPool(segments);
+		final long started = System.nanoTime();
+		boolean success = false;
+
+		try (RandomAccessFile file = new RandomAccessFile(partial, "rw")) {
+			file.setLength(size);
+			final FileChannel target = file.getChannel();
+			final List<Future<Long>> results = new ArrayList<>();
+			for (int i = 0; i < segments; i++) {
+				final long start = size * i / segments;
+				final long end = size * (i + 1) / segments;
+				results.add(workers.submit(
+						() -> fetchSegment(filename, start, end - start, target)));
+			}
+			for (final Future<Long> result : results) {
+				result.get();
+			}
+			success = true;
+		} catch (IOException ioe) {
+			System.err.printf("Could not write %s: %s%n", partial, ioe);
+		} catch (ExecutionException ee) {
+			System.err.printf("Segment failed: %s%n", ee.getCause());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			workers.shutdownNow();
+		}
+
+		if (!success) {
+			if (!partial.delete()) {
+				System.err.printf("Could not delete %s%n", partial);
+			}
+			return;
+		}
+		try {
+			Files.move(partial.toPath(), new File(getFilePath(filename)).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ioe) {
+			System.err.printf("Could not rename %s: %s%n", partial, ioe);
+			return;
+		}
+
+		final double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+		System.out.printf("%d bytes in %.2f s (%.2f MB/s) over %d connections%n",
+				size, seconds, size / 1e6 / seconds, segments);
+	}
+
+	/**
+	 * Fetches one byte range over a connection of its own and writes it into
+	 * the shared file at the same position.
+	 * 
+	 * @param filename
+	 *            Name of the file on the server.
+	 * @param offset
+	 *            first byte of the range
+	 * @param length
+	 *            number of bytes in the range
+	 * @param target
+	 *            the local file, shared by all segments
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	final private long fetchSegment(final String filename, final long offset,
+			final long length, final FileChannel target) throws IOException {
+		final FTPClient segment = new FTPClient(port, ip, fileBase);
+		segment.requestBinary = requestBinary;
+		segment.requestPipelining = requestPipelining;
+		if (!segment.connect()) {
+			throw new IOException("Could not open a segment connection");
+		}
+
+		try {
+			// wait for PROMPT, then ask for the range
+			segment.awaitPrompt();
+			segment.sendMessage(GET + " " + filename + " " + offset + " " + length);
+			segment.awaitReply();
+			final long size = Long.parseLong(segment.receiveMessage());
+			if (size == BUSY) {
+				throw new IOException("Server busy, range not sent");
+			} else if (size == ERROR) {
+				throw new IOException(filename + " vanished from the server");
+			}
+
+			final long count = segment.readLength();
+			final IOException failure = segment.storeRange(
+					count == length ? target : null, offset, count);
+			if (count != length) {
+				throw new IOException(String.format(
+						"Asked for %d bytes at %d, got %d", length, offset, count));
+			} else if (failure != null) {
+				throw failure;
+			}
+			segment.handleExit();
+			return count;
+		} catch (NumberFormatException nfe) {
+			throw new IOException("Invalid length specified", nfe);
+		} finally {
+			if (!segment.exitRecieved) {
+				segment.terminate();
+			}
+		}
+	}
+
+	/**
+	 * Consumes the server's first prompt and asks for binary framing and the
+	 * optional features this client uses. A server that predates the hello
+	 * command ignores it and prompts again, in which case the session stays on
+	 * text framing without features.
+	 * 
+	 * @throws IOException
+	 */
+	final private void negotiateFraming() throws IOException {
+		if (receiveMessage().equals(SERVER_BUSY)) {
+			throw new IOException("Server busy, try again later");
+		}
+		final StringBuilder hello = new StringBuilder(MessageFormat.format(
+				"{0} {1} {2} {3}", HELLO, PROTOCOL_VERSION,
+				requestBinary ? BINARY : TEXT, RANGES));
+		if (compression) {
+			hello.append(' ').append(DEFLATE);
+		}
+		if (requestPipelining) {
+			hello.append(' ').append(PIPELINE);
+		}
+		hello.append(' ').append(DELTA).append(' ').append(CHUNKS).append(' ')
+				.append(CHECKSUM).append(' ').append(METRICS);
+		sendMessage(hello.toString());
+
+		final StringTokenizer reply = new StringTokenizer(receiveMessage());
+		if (reply.hasMoreTokens() && reply.nextToken().equals(HELLO_REPLY)) {
+			// the next prompt arrives in the agreed framing
+			if (reply.hasMoreTokens()) {
+				reply.nextToken();
+			}
+			binaryFraming = reply.hasMoreTokens()
+					&& reply.nextToken().equalsIgnoreCase(BINARY);
+			// whatever follows are the features the server granted
+			while (reply.hasMoreTokens()) {
+				features.add(reply.nextToken().toLowerCase());
+			}
+		} else {
+			// the reply was a prompt; an empty command earns a fresh one
+			sendMessage("");
+		}
+		chatter("Using %s framing%s.%n", binaryFraming ? BINARY : TEXT,
+				features.contains(PIPELINE) ? ", pipelined" : "");
+	}
+
+	/**
+	 * Control loop of a pipelined session. The prompt is printed locally, and
+	 * only on a terminal; each command goes out as soon as it is entered while
+	 * a reply thread reads the tagged replies in order, at most PIPELINE_DEPTH
+	 * behind. Sequential commands first wait for every outstanding reply.
+	 * The end of the input ends the session.
+	 * 
+	 * @param console
+	 *            source of commands
+	 * @throws IOException
+	 */
+	final private void pipelineCommands(final BufferedReader console)
+			throws IOException {
+		final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(
+				PIPELINE_DEPTH);
+		final Runnable stop = () -> {
+		};
+		final Thread reader = new Thread(() -> {
+			try {
+				for (Runnable reply; (reply = queue.take()) != stop;) {
+					reply.run();
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}, "replies " + ip + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
+		replies = queue;
+
+		try {
+			while (!exitRecieved && !socket.isClosed()) {
+				if (System.console() != null) {
+					System.out.printf("%s", ServerSession.PROMPT);
+				}
+				final String userInput = console.readLine();
+				final CommandLine args = CommandLine.of(
+						userInput == null ? EXIT : userInput);
+
+				if (needsLockStep(userInput == null ? EXIT : userInput)) {
+					// wait out the replies in flight, then run in lock step
+					final CountDownLatch caughtUp = new CountDownLatch(1);
+					queue.put(caughtUp::countDown);
+					caughtUp.await();
+					replies = null;
+					try {
+						processCommand(args);
+					} finally {
+						replies = queue;
+					}
+				} else {
+					processCommand(args);
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			replies = null;
+			queue.offer(stop);
+		}
+	}
+
+	/**
+	 * Tells whether a command must wait for every reply in flight before it
+	 * goes out. Besides the sequential commands, that is a get of a file with
+	 * a partial download: an earlier get of the same file may still be
+	 * writing the partial file on the reply thread, so its length is only a
+	 * safe offset to resume from once the replies have caught up.
+	 * 
+	 * @param userInput
+	 *            the command as typed
+	 * @return true to run the command in lock step
+	 */
+	final private boolean needsLockStep(final String userInput) {
+		final StringTokenizer command = new StringTokenizer(userInput);
+		if (!command.hasMoreTokens()) {
+			return false;
+		}
+		final String name = command.nextToken().toLowerCase();
+		return SEQUENTIAL_COMMANDS.contains(name) || name.equals(GET)
+				&& command.hasMoreTokens() && new File(getFilePath(
+						command.nextToken() + PARTIAL_SUFFIX)).isFile();
+	}
+
 	/**
 	 * Begins loop that allows client to send commands to the server.
 	 */
 	// Private added instead of public 
 	
 	final private void queryServer() {
-		if (lineIn == null || lineOut == null) {
+		if (dataIn == null || dataOut == null) {
 			System.err.printf("Cannot query server, IO has not been set up%n");
 		} else {
 			try {
 				String serverReply;
 				String userInput;
-				StringTokenizer args;
 				final InputStreamReader input = new InputStreamReader(System.in,"UTF-8");
 				final BufferedReader console = new BufferedReader(input);
 
-				// client-side control loop
-				while (!exitRecieved) {
-					// Wait for PROMPT
-					serverReply = receiveMessage();
-					System.out.printf("%s", serverReply);
+				if (features.contains(PIPELINE)) {
+					pipelineCommands(console);
+				} else {
+					// client-side control loop
+					while (!exitRecieved) {
+						// Wait for PROMPT
+						serverReply = receiveMessage();
+						System.out.printf("%s", serverReply);
 
-					// ACCEPT & PROCESS USER INPUT
-					userInput = console.readLine();
-					userInput = userInput == null ? "" : userInput;
-					args = new StringTokenizer(userInput);
-					processCommand(args);
+						// ACCEPT & PROCESS USER INPUT
+						userInput = console.readLine();
+						userInput = userInput == null ? "" : userInput;
+						processCommand(CommandLine.of(userInput));
+					}
 				}
 
 				// clean up
@@ -253,6 +1456,9 @@ public class FTPClient extends FTPApplication {
 		int port = -1;
 		String directory = System.getProperty(FTPApplication.DEFAULT_FILEBASE); 
 		InetAddress ip = null;
+		boolean textOnly = false;
+		boolean sequential = false;
+		int workers = DEFAULT_WORKERS;
 
 		// Process arguments
 		boolean helpRequested = false;
@@ -270,6 +1476,45 @@ public class FTPClient extends FTPApplication {
 				case 'h':
 					helpRequested = true;
 					break;
+				case 't':
+					textOnly = true;
+					break;
+				case 'z':
+					FTPApplication.zeroCopy = false;
+					break;
+				case 'x':
+					FTPApplication.compression = false;
+					break;
+				case 's':
+					sequential = true;
+					break;
+				case 'm':
+					if (index + 1 >= args.length) {
+						System.err.println("Mapping threshold expected.");
+						helpRequested = true;
+					} else {
+						FTPApplication.mmapThreshold = Long.parseLong(args[++index]);
+						helpRequested = FTPApplication.mmapThreshold < 0;
+					}
+					break;
+				case 'w':
+					if (index + 1 >= args.length) {
+						System.err.println("Connection count expected.");
+						helpRequested = true;
+					} else {
+						workers = Integer.parseInt(args[++index]);
+						helpRequested = workers <= 0;
+					}
+					break;
+				case 'b':
+					if (index + 1 >= args.length) {
+						System.err.println("Buffer size expected.");
+						helpRequested = true;
+					} else {
+						FTPApplication.bufferSize = Integer.parseInt(args[++index]);
+						helpRequested = FTPApplication.bufferSize <= 0;
+					}
+					break;
 				case 'd':
 					if (index + 1 >= args.length) {
 						System.err.println("Directory expected.");
@@ -311,6 +1556,9 @@ public class FTPClient extends FTPApplication {
 			printUsage();
 		} else {
 			final FTPClient client = new FTPClient(port, ip, directory);
+			client.requestBinary = !textOnly;
+			client.requestPipelining = !sequential;
+			client.workers = workers;
 			if (client.connect()) {
 				client.queryServer();
 			}
@@ -1,8 +1,16 @@
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A pseudo FTP server. Accepts client connection and initiates a session.
@@ -13,8 +21,30 @@ import java.net.Socket;
  */
 // change here
 public class FTPServer{
+	private static final Log log = Log.forContext("server");
+
+	/* Pause after a failed accept, doubled while failures persist, in ms */
+	private static final long ACCEPT_BACKOFF = 5;
+	private static final long MAX_ACCEPT_BACKOFF = 200;
+
+	/* Least time between repeated accept failure warnings, in ms */
+	private static final long ACCEPT_WARN_INTERVAL = 10000;
+
 	protected int port;
 	protected String fileBase;
+	protected boolean allowBinary = true;
+
+	/* Runs one task per ServerSession */
+	protected final Executor sessionExecutor;
+
+	/* Listening socket, closed by shutdown() to end the accept loop */
+	private volatile ServerSocket serverSocket;
+	private volatile boolean running;
+
+	/* Accept failure backoff, touched only by the accepting thread */
+	private long acceptBackoff = ACCEPT_BACKOFF;
+	private long lastAcceptWarning;
+	private long unreportedAcceptFailures;
 
 	// ----------------------------------------------------------------------
 	// CONSTRUCTOR
@@ -30,8 +60,24 @@ public class FTPServer{
 	 */
 	// Change here - protected
 	protected FTPServer(final int port, final String fileBase) {
+		this(port, fileBase, newSessionExecutor());
+	}
+
+	/**
+	 * Creates a server whose sessions run on the given executor.
+	 * 
+	 * @param port
+	 *            Port which the server will listen on.
+	 * @param fileBase
+	 *            The path to the directory from which files will be served
+	 * @param sessionExecutor
+	 *            Executor that runs each client session
+	 */
+	protected FTPServer(final int port, final String fileBase,
+			final Executor sessionExecutor) {
 		this.port = port;
 		this.fileBase = fileBase;
+		this.sessionExecutor = sessionExecutor;
 	}
 
 	// ----------------------------------------------------------------------
@@ -47,6 +93,115 @@ public class FTPServer{
 		System.out.printf("\tWhere valid options include: %n");
 		System.out.printf("\t\t -h \t Prints usage %n");
 		System.out.printf("\t\t -d \t File directory %n");
+		System.out.printf("\t\t -t \t Text framing only %n");
+		System.out.printf("\t\t -b \t Transfer buffer size in bytes %n");
+		System.out.printf("\t\t -z \t Disable zero-copy sends %n");
+		System.out.printf("\t\t -x \t Disable compression %n");
+		System.out.printf("\t\t -m \t Memory-map files from this size, 0 to disable %n");
+		System.out.printf("\t\t -e \t Engine: blocking (default) or nio %n");
+		System.out.printf("\t\t -l \t Event loops for the nio engine %n");
+		System.out.printf("\t\t -c \t Hot-file cache size in bytes, 0 to disable %n");
+		System.out.printf("\t\t -a \t Store files as deduplicated chunks (blocking engine) %n");
+		System.out.printf("\t\t -s \t Print metrics every this many seconds %n");
+		System.out.printf("\t\t -n \t Acknowledge uploads without forcing them to disk %n");
+		System.out.printf("\t\t -g \t Server-wide file data rate in bytes/s (blocking engine) %n");
+		System.out.printf("\t\t -r \t Per-session file data rate in bytes/s (blocking engine) %n");
+		System.out.printf("\t\t -k \t Transfers below this many bytes are never rate limited %n");
+		System.out.printf("\t\t -u \t Sessions served at once, 0 for no limit (blocking engine) %n");
+		System.out.printf("\t\t -j \t Transfers run at once, 0 for no limit (blocking engine) %n");
+		System.out.printf("\t\t -q \t Sessions or transfers that may wait for a slot %n");
+		System.out.printf("\t\t -w \t Longest wait for a slot in milliseconds %n");
+		System.out.printf("\t\t -v \t Log level: error, warn, info (default) or debug %n");
+	}
+
+	/**
+	 * Returns an executor that starts a virtual thread per session when the
+	 * runtime provides them (Java 21+), and a cached pool of platform threads
+	 * otherwise.
+	 * 
+	 * @return executor for client sessions
+	 */
+	protected static ExecutorService newSessionExecutor() {
+		try {
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException roe) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Serves one accepted client to completion.
+	 * 
+	 * @param clientSocket
+	 *            the accepted connection
+	 */
+	private void serve(final Socket clientSocket) {
+		final AdmissionControl admission = AdmissionControl.shared();
+		if (!admission.admitSession()) {
+			refuse(clientSocket);
+			return;
+		}
+		try {
+			ServerSession session = new ServerSession(clientSocket, fileBase,
+					allowBinary);
+			session.serveClient();
+		} catch (IOException ioe) {
+			log.warn("Could not start session for %s: %s", clientSocket, ioe);
+			try {
+				clientSocket.close();
+			} catch (IOException closeError) {
+				log.warn("Error closing %s: %s", clientSocket, closeError);
+			}
+		} finally {
+			admission.sessionDone();
+		}
+	}
+
+	/**
+	 * Tells a client the server is too busy to serve it, in the text framing
+	 * every session starts in, and hangs up.
+	 * 
+	 * @param clientSocket
+	 *            the accepted connection
+	 */
+	private static void refuse(final Socket clientSocket) {
+		log.warn("Server busy, refusing %s", clientSocket);
+		final byte[] message = FTPApplication.SERVER_BUSY
+				.getBytes(StandardCharsets.UTF_8);
+		final StringBuilder frame = new StringBuilder();
+		frame.append(message.length).append('\n');
+		for (final byte aB : message) {
+			frame.append(aB).append('\n');
+		}
+		try (Socket socket = clientSocket) {
+			socket.getOutputStream().write(
+					frame.toString().getBytes(StandardCharsets.US_ASCII));
+		} catch (IOException ioe) {
+			log.warn("Error refusing %s: %s", clientSocket, ioe);
+		}
+	}
+
+	/**
+	 * Pauses after a failed accept so that a persistent failure, e.g. running
+	 * out of file descriptors, neither spins the accepting thread nor floods
+	 * the log. The pause doubles while failures persist, and repeated
+	 * warnings are summarised.
+	 * 
+	 * @param ioe
+	 *            why the accept failed
+	 */
+	private void backOff(final IOException ioe) {
+		unreportedAcceptFailures++;
+		final long now = System.currentTimeMillis();
+		if (now - lastAcceptWarning >= ACCEPT_WARN_INTERVAL) {
+			log.warn("%s Error accepting client (%d failures), retrying in %d ms",
+					ioe, unreportedAcceptFailures, acceptBackoff);
+			lastAcceptWarning = now;
+			unreportedAcceptFailures = 0;
+		}
+		LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(acceptBackoff));
+		acceptBackoff = Math.min(acceptBackoff * 2, MAX_ACCEPT_BACKOFF);
 	}
 
 	// ----------------------------------------------------------------------
@@ -54,35 +209,61 @@ public class FTPServer{
 	// ----------------------------------------------------------------------
 
 	/**
-	 * Performs a passive open and accepts a client. ServerSession objects are
-	 * instantiated to serve client requests.
+	 * Stops accepting clients. Sessions already running are left to finish.
+	 */
+	protected void shutdown() {
+		running = false;
+		final ServerSocket listener = serverSocket;
+		if (listener != null) {
+			try {
+				listener.close();
+			} catch (IOException ioe) {
+				log.warn("Error closing listener: %s", ioe);
+			}
+		}
+	}
+
+	/**
+	 * Performs a passive open and accepts clients until shut down. Each client
+	 * is served by its own ServerSession on the session executor.
 	 */
 	//protected added here
 	protected void acceptClients() {
 		try {
 			// initiate server socket
-			System.out.printf("Creating socket ... ");
-			ServerSocket serverSocket = new ServerSocket(port);
-			serverSocket.setSoTimeout(FTPApplication.SOCKET_TIMEOUT);
-			System.out.printf("Bound to %s:%s %n", InetAddress.getLocalHost(),
-					serverSocket.getLocalPort());
-
-			// listen for clients
-			System.out.printf("Listening for connections ... ");
-			Socket clientSocket = serverSocket.accept();
-			System.out.printf("Accepted client from %s%n", clientSocket);
-
-			// SERVE THE CLIENT
-			ServerSession session = new ServerSession(clientSocket, fileBase);
-			session.serveClient();
+			// channel-backed so sessions can send files with zero-copy
+			serverSocket = ServerSocketChannel.open().socket();
+			serverSocket.bind(new InetSocketAddress(port),
+					AdmissionControl.backlog());
+			running = true;
+			log.info("Bound to %s:%s, listening for connections.",
+					InetAddress.getLocalHost(), serverSocket.getLocalPort());
+
+			// listen for clients until shut down
+			while (running) {
+				final Socket clientSocket;
+				try {
+					clientSocket = serverSocket.accept();
+				} catch (IOException ioe) {
+					if (running) {
+						backOff(ioe);
+						continue;
+					}
+					break;
+				}
+				acceptBackoff = ACCEPT_BACKOFF;
+				log.debug("Accepted client from %s", clientSocket);
+
+				// SERVE THE CLIENT on its own thread
+				sessionExecutor.execute(() -> serve(clientSocket));
+			}
 
 			// clean up
-			System.out.printf("Closing socket ... ");
 			serverSocket.close();
-			System.out.printf("done.");
+			log.info("Closed socket.");
 
 		} catch (IOException e) {
-			System.err.printf("%s Error with listening%n", e);
+			log.error("%s Error with listening", e);
 		}
 	}
 
@@ -96,6 +277,20 @@ public class FTPServer{
 		int port = -1;
 		String directory = System.getProperty(FTPApplication.DEFAULT_FILEBASE);
 
+		boolean textOnly = false;
+		boolean chunked = false;
+		boolean durable = true;
+		long serverRate = 0;
+		long sessionRate = 0;
+		long interactive = BandwidthShaper.DEFAULT_INTERACTIVE;
+		int maxSessions = 0;
+		int maxTransfers = 0;
+		int queue = AdmissionControl.DEFAULT_QUEUE;
+		long wait = AdmissionControl.DEFAULT_WAIT;
+		long reportInterval = 0;
+		String engine = "blocking";
+		int loops = Runtime.getRuntime().availableProcessors();
+
 		// Process arguments
 		boolean helpRequested = false;
 		for (int index = 0; !helpRequested && index < args.length; index++) {
@@ -112,6 +307,148 @@ public class FTPServer{
 				case 'h':
 					helpRequested = true;
 					break;
+				case 't':
+					textOnly = true;
+					break;
+				case 'a':
+					chunked = true;
+					break;
+				case 'n':
+					durable = false;
+					break;
+				case 'g':
+					if (index + 1 >= args.length) {
+						System.err.println("Server rate expected.");
+						helpRequested = true;
+					} else {
+						serverRate = Long.parseLong(args[++index]);
+						helpRequested = serverRate < 0;
+					}
+					break;
+				case 'r':
+					if (index + 1 >= args.length) {
+						System.err.println("Session rate expected.");
+						helpRequested = true;
+					} else {
+						sessionRate = Long.parseLong(args[++index]);
+						helpRequested = sessionRate < 0;
+					}
+					break;
+				case 'u':
+					if (index + 1 >= args.length) {
+						System.err.println("Session limit expected.");
+						helpRequested = true;
+					} else {
+						maxSessions = Integer.parseInt(args[++index]);
+						helpRequested = maxSessions < 0;
+					}
+					break;
+				case 'j':
+					if (index + 1 >= args.length) {
+						System.err.println("Transfer limit expected.");
+						helpRequested = true;
+					} else {
+						maxTransfers = Integer.parseInt(args[++index]);
+						helpRequested = maxTransfers < 0;
+					}
+					break;
+				case 'q':
+					if (index + 1 >= args.length) {
+						System.err.println("Queue length expected.");
+						helpRequested = true;
+					} else {
+						queue = Integer.parseInt(args[++index]);
+						helpRequested = queue < 0;
+					}
+					break;
+				case 'w':
+					if (index + 1 >= args.length) {
+						System.err.println("Wait in milliseconds expected.");
+						helpRequested = true;
+					} else {
+						wait = Long.parseLong(args[++index]);
+						helpRequested = wait < 0;
+					}
+					break;
+				case 'k':
+					if (index + 1 >= args.length) {
+						System.err.println("Transfer size expected.");
+						helpRequested = true;
+					} else {
+						interactive = Long.parseLong(args[++index]);
+						helpRequested = interactive < 0;
+					}
+					break;
+				case 's':
+					if (index + 1 >= args.length) {
+						System.err.println("Report interval expected.");
+						helpRequested = true;
+					} else {
+						reportInterval = Long.parseLong(args[++index]);
+						helpRequested = reportInterval < 0;
+					}
+					break;
+				case 'v':
+					if (index + 1 >= args.length) {
+						System.err.println("Log level expected.");
+						helpRequested = true;
+					} else {
+						helpRequested = !Log.configure(args[++index]);
+					}
+					break;
+				case 'z':
+					FTPApplication.zeroCopy = false;
+					break;
+				case 'x':
+					FTPApplication.compression = false;
+					break;
+				case 'm':
+					if (index + 1 >= args.length) {
+						System.err.println("Mapping threshold expected.");
+						helpRequested = true;
+					} else {
+						FTPApplication.mmapThreshold = Long.parseLong(args[++index]);
+						helpRequested = FTPApplication.mmapThreshold < 0;
+					}
+					break;
+				case 'b':
+					if (index + 1 >= args.length) {
+						System.err.println("Buffer size expected.");
+						helpRequested = true;
+					} else {
+						FTPApplication.bufferSize = Integer.parseInt(args[++index]);
+						helpRequested = FTPApplication.bufferSize <= 0;
+					}
+					break;
+				case 'e':
+					if (index + 1 >= args.length) {
+						System.err.println("Engine expected.");
+						helpRequested = true;
+					} else {
+						engine = args[++index];
+						helpRequested = !engine.equals("blocking")
+								&& !engine.equals("nio");
+					}
+					break;
+				case 'c':
+					if (index + 1 >= args.length) {
+						System.err.println("Cache size expected.");
+						helpRequested = true;
+					} else {
+						final long cacheSize = Long.parseLong(args[++index]);
+						FileContentCache.configure(cacheSize);
+						helpRequested = cacheSize < 0;
+					}
+					break;
+				case 'l':
+					if (index + 1 >= args.length) {
+						System.err.println("Event loop count expected.");
+						helpRequested = true;
+					} else {
+						loops = Integer.parseInt(args[++index]);
+						helpRequested = loops <= 0;
+					}
+					break;
 				case 'd':
 					if (index + 1 >= args.length) {
 						System.err.println("Directory expected.");
@@ -139,8 +476,30 @@ public class FTPServer{
 		// Begin execution
 		if (helpRequested || port == 0) {
 			printUsage();
+		} else if (chunked && engine.equals("nio")) {
+			System.err.println("The nio engine cannot serve a chunk store.");
+			printUsage();
+		} else if ((serverRate > 0 || sessionRate > 0) && engine.equals("nio")) {
+			System.err.println("The nio engine cannot limit transfer rates.");
+			printUsage();
+		} else if ((maxSessions > 0 || maxTransfers > 0) && engine.equals("nio")) {
+			System.err.println("The nio engine cannot limit sessions or transfers.");
+			printUsage();
+		} else if (engine.equals("nio")) {
+			AdmissionControl.configure(0, 0, queue, wait);
+			GroupCommit.configure(durable);
+			ServerMetrics.startReporting(reportInterval);
+			EventLoopServer server = new EventLoopServer(port, directory, loops);
+			server.allowBinary = !textOnly;
+			server.acceptClients();
 		} else {
+			ChunkStore.configure(chunked);
+			GroupCommit.configure(durable);
+			BandwidthShaper.configure(serverRate, sessionRate, interactive);
+			AdmissionControl.configure(maxSessions, maxTransfers, queue, wait);
+			ServerMetrics.startReporting(reportInterval);
 			FTPServer server = new FTPServer(port, directory);
+			server.allowBinary = !textOnly;
 			server.acceptClients();
 		}
 	}
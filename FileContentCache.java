@@ -0,0 +1,247 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A byte-bounded LRU cache of small, frequently downloaded files, shared by
+ * every session in the process. Contents live off-heap in direct buffers.
+ * Entries are keyed by canonical path and only served while the file's
+ * modification time and size still match what was loaded.
+ */
+public class FileContentCache {
+	private static final Log log = Log.forContext("content cache");
+
+	protected static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+	/* Files larger than capacity / MAX_ENTRY_FRACTION are never cached */
+	private static final int MAX_ENTRY_FRACTION = 16;
+
+	/* Largest entry a single direct buffer can hold */
+	private static final long MAX_ENTRY = Integer.MAX_VALUE;
+
+	private static long configuredCapacity = DEFAULT_CAPACITY;
+	private static FileContentCache shared;
+
+	private final long capacity;
+	private final long maxEntry;
+
+	/* Access-ordered, so iteration starts at the least recently used entry */
+	private final LinkedHashMap<String, Entry> entries =
+			new LinkedHashMap<>(64, 0.75f, true);
+	private long used;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Cached contents of one file version.
+	 */
+	private static final class Entry {
+		private final ByteBuffer data;
+		private final long modified;
+
+		private Entry(final ByteBuffer data, final long modified) {
+			this.data = data;
+			this.modified = modified;
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param capacity
+	 *            total bytes of file content to keep; 0 disables caching.
+	 *            Entries are capped at what one direct buffer holds however
+	 *            large this is.
+	 */
+	protected FileContentCache(final long capacity) {
+		this.capacity = Math.max(0, capacity);
+		this.maxEntry = Math.min(this.capacity / MAX_ENTRY_FRACTION, MAX_ENTRY);
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Sets the capacity of the shared cache. Only effective before the first
+	 * call to {@link #shared()}.
+	 *
+	 * @param capacity
+	 *            total bytes of file content to keep; 0 disables caching
+	 */
+	protected static synchronized void configure(final long capacity) {
+		configuredCapacity = capacity;
+	}
+
+	/**
+	 * @return the process-wide cache
+	 */
+	protected static synchronized FileContentCache shared() {
+		if (shared == null) {
+			shared = new FileContentCache(configuredCapacity);
+		}
+		return shared;
+	}
+
+	/**
+	 * Returns the file's contents, loading them on a miss if the file is
+	 * small enough to cache.
+	 *
+	 * @param file
+	 *            the file to serve
+	 * @return a read-only view positioned at the first byte, or null if the
+	 *         file is not cacheable
+	 */
+	protected ByteBuffer get(final File file) {
+		final long size = file.length();
+		if (capacity == 0 || size > maxEntry) {
+			return null;
+		}
+
+		final String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (IOException ioe) {
+			return null;
+		}
+		final long modified = file.lastModified();
+
+		synchronized (this) {
+			final Entry entry = entries.get(key);
+			if (entry != null && entry.modified == modified
+					&& entry.data.capacity() == size) {
+				hits.increment();
+				return entry.data.duplicate();
+			}
+		}
+		misses.increment();
+
+		final ByteBuffer data;
+		try {
+			data = load(file, size);
+		} catch (IOException ioe) {
+			log.warn("Could not cache %s: %s", file, ioe);
+			return null;
+		}
+		// the file changed while loading; serve it once, don't keep it
+		if (data == null || file.lastModified() != modified) {
+			return data;
+		}
+
+		synchronized (this) {
+			final Entry previous = entries.put(key, new Entry(data, modified));
+			if (previous != null) {
+				used -= previous.data.capacity();
+			}
+			used += size;
+			evict();
+		}
+		return data.duplicate();
+	}
+
+	/**
+	 * Drops any cached contents of the file, e.g. after it was overwritten.
+	 *
+	 * @param file
+	 *            the changed file
+	 */
+	protected void invalidate(final File file) {
+		try {
+			final String key = file.getCanonicalPath();
+			synchronized (this) {
+				final Entry previous = entries.remove(key);
+				if (previous != null) {
+					used -= previous.data.capacity();
+				}
+			}
+		} catch (IOException ioe) {
+			log.warn("Could not invalidate %s: %s", file, ioe);
+		}
+	}
+
+	/**
+	 * @return number of requests served from memory
+	 */
+	protected long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of requests for cacheable files that had to read disk
+	 */
+	protected long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of entries dropped to stay within capacity
+	 */
+	protected long evictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return bytes of file content currently held
+	 */
+	protected synchronized long used() {
+		return used;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("hits=%d misses=%d evictions=%d used=%d/%d",
+				hits(), misses(), evictions(), used(), capacity);
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Reads a whole file into a direct buffer.
+	 *
+	 * @return read-only contents, or null if the file's size changed
+	 */
+	private static ByteBuffer load(final File file, final long size)
+			throws IOException {
+		final ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+		try (FileChannel source = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			while (data.hasRemaining()) {
+				if (source.read(data) < 0) {
+					return null;
+				}
+			}
+			if (source.size() != size) {
+				return null;
+			}
+		}
+		data.flip();
+		return data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Drops least recently used entries until the cache fits its capacity.
+	 */
+	private void evict() {
+		final Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+		while (used > capacity && lru.hasNext()) {
+			used -= lru.next().getValue().data.capacity();
+			lru.remove();
+			evictions.increment();
+		}
+	}
+
+}
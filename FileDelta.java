@@ -0,0 +1,469 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * rsync-style delta transfer of a changed file. The receiver describes its
+ * old copy as a signature: a rolling and a strong checksum for each block.
+ * The sender slides a block-sized window over its new copy and answers with
+ * a stream of frames that either reference blocks of the old copy or carry
+ * literal bytes, and the receiver rebuilds the new copy from the two.
+ */
+public class FileDelta {
+	private static final Log log = Log.forContext("delta");
+
+	/* Block size bounds; in between it is the square root of the file size */
+	protected static final int MIN_BLOCK = 2 * 1024;
+	protected static final int MAX_BLOCK = 128 * 1024;
+
+	/* Frame types of the delta stream */
+	private static final byte LITERAL = 0;
+	private static final byte COPY = 1;
+	private static final byte END = 2;
+
+	private static final String STRONG_SUM = "MD5";
+	private static final int STRONG_LENGTH = 16;
+
+	/**
+	 * Supplies the frames of a delta stream, e.g. FTPApplication::receiveData.
+	 */
+	protected interface FrameSource {
+		byte[] next() throws IOException;
+	}
+
+	/**
+	 * Encodes the delta stream, merging references to consecutive blocks.
+	 */
+	private static final class DeltaWriter {
+		private final Consumer<byte[]> out;
+		private int runStart = -1;
+		private int runLength;
+		private long literal;
+
+		private DeltaWriter(final Consumer<byte[]> out) {
+			this.out = out;
+		}
+
+		private void copy(final int block) throws IOException {
+			if (runStart >= 0 && block == runStart + runLength) {
+				runLength++;
+			} else {
+				flushRun();
+				runStart = block;
+				runLength = 1;
+			}
+		}
+
+		private void literal(final byte[] data, final int offset, final int length)
+				throws IOException {
+			if (length > 0) {
+				flushRun();
+				final byte[] frame = new byte[length + 1];
+				frame[0] = LITERAL;
+				System.arraycopy(data, offset, frame, 1, length);
+				out.accept(frame);
+				literal += length;
+			}
+		}
+
+		private void end(final long length, final byte[] sum) throws IOException {
+			flushRun();
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream frame = new DataOutputStream(bytes)) {
+				frame.writeByte(END);
+				frame.writeLong(length);
+				frame.write(sum);
+			}
+			out.accept(bytes.toByteArray());
+		}
+
+		private void flushRun() throws IOException {
+			if (runStart >= 0) {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (DataOutputStream frame = new DataOutputStream(bytes)) {
+					frame.writeByte(COPY);
+					frame.writeInt(runStart);
+					frame.writeInt(runLength);
+				}
+				out.accept(bytes.toByteArray());
+				runStart = -1;
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Static helpers only.
+	 */
+	private FileDelta() {
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * @param size
+	 *            size of the old copy
+	 * @return the block size to describe it with
+	 */
+	protected static int blockSize(final long size) {
+		return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, (long) Math.sqrt(size)));
+	}
+
+	/**
+	 * Describes the old copy of a file: block size, block count, then the
+	 * rolling and strong checksum of every whole block. A trailing partial
+	 * block is left out, as is everything if there is no old copy.
+	 *
+	 * @param file
+	 *            the old copy
+	 * @param blockSize
+	 *            bytes per block
+	 * @return the encoded signature
+	 */
+	protected static byte[] signature(final File file, final int blockSize) {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int count = 0;
+		try (DataOutputStream sums = new DataOutputStream(body)) {
+			if (file.isFile()) {
+				final MessageDigest strong = strongSum();
+				final byte[] block = new byte[blockSize];
+				try (InputStream in = Files.newInputStream(file.toPath())) {
+					while (readBlock(in, block)) {
+						sums.writeInt(weakSum(block, blockSize));
+						sums.write(strong.digest(block));
+						count++;
+					}
+				} catch (IOException ioe) {
+					// whatever was summed is still a valid basis
+					log.warn("Could not sum %s: %s", file, ioe);
+				}
+			}
+		} catch (IOException ioe) {
+			// in-memory streams don't fail
+			throw new IllegalStateException(ioe);
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(blockSize);
+			out.writeInt(count);
+			body.writeTo(out);
+		} catch (IOException ioe) {
+			throw new IllegalStateException(ioe);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Compares a file against the signature of the receiver's old copy and
+	 * emits the delta stream: literal frames of at most bufferSize bytes,
+	 * references to runs of old blocks, and a final frame with the file's
+	 * length and strong checksum.
+	 *
+	 * @param file
+	 *            the new copy
+	 * @param signature
+	 *            as encoded by {@link #signature}
+	 * @param out
+	 *            receives each frame, e.g. FTPApplication::sendData
+	 * @return number of bytes sent as literal data
+	 * @throws IOException
+	 *             if the file cannot be read or the signature is corrupt
+	 */
+	protected static long diff(final File file, final byte[] signature,
+			final Consumer<byte[]> out) throws IOException {
+		final DataInputStream sig = new DataInputStream(
+				new ByteArrayInputStream(signature));
+		final int block = sig.readInt();
+		final int count = sig.readInt();
+		if (block <= 0 || block > MAX_BLOCK || count < 0) {
+			throw new IOException("Invalid signature");
+		}
+
+		// the bitmap filters out most windows before the map is consulted
+		final boolean[] seen = new boolean[1 << 16];
+		final Map<Integer, List<Integer>> blocks = new HashMap<>();
+		final byte[][] strong = new byte[count][STRONG_LENGTH];
+		for (int i = 0; i < count; i++) {
+			final int weak = sig.readInt();
+			seen[(weak ^ weak >>> 16) & 0xffff] = true;
+			blocks.computeIfAbsent(weak, w -> new ArrayList<>(1)).add(i);
+			sig.readFully(strong[i]);
+		}
+
+		final MessageDigest window = strongSum();
+		final MessageDigest whole = strongSum();
+		final DeltaWriter writer = new DeltaWriter(out);
+		final int chunk = FTPApplication.bufferSize;
+		final byte[] buffer = new byte[2 * (block + chunk)];
+		int length = 0;
+		int position = 0;
+		int literal = 0;
+		int a = 0;
+		int b = 0;
+		boolean rolled = false;
+		boolean eof = false;
+		long total = 0;
+
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			while (true) {
+				if (position - literal >= chunk) {
+					writer.literal(buffer, literal, position - literal);
+					literal = position;
+				}
+				if (length - position < block && !eof) {
+					// keep the pending literal and the window, refill the rest
+					System.arraycopy(buffer, literal, buffer, 0, length - literal);
+					length -= literal;
+					position -= literal;
+					literal = 0;
+					while (length < buffer.length) {
+						final int amt = in.read(buffer, length, buffer.length - length);
+						if (amt < 0) {
+							eof = true;
+							break;
+						}
+						whole.update(buffer, length, amt);
+						total += amt;
+						length += amt;
+					}
+					continue;
+				}
+				if (length - position < block) {
+					break;
+				}
+
+				if (!rolled) {
+					a = 0;
+					b = 0;
+					for (int k = 0; k < block; k++) {
+						final int x = buffer[position + k] & 0xff;
+						a += x;
+						b += (block - k) * x;
+					}
+					rolled = true;
+				}
+				final int weak = (b & 0xffff) << 16 | (a & 0xffff);
+
+				int match = -1;
+				if (seen[(weak ^ weak >>> 16) & 0xffff] && blocks.containsKey(weak)) {
+					window.update(buffer, position, block);
+					final byte[] sum = window.digest();
+					for (final int candidate : blocks.get(weak)) {
+						if (MessageDigest.isEqual(sum, strong[candidate])) {
+							match = candidate;
+							break;
+						}
+					}
+				}
+
+				if (match >= 0) {
+					writer.literal(buffer, literal, position - literal);
+					writer.copy(match);
+					position += block;
+					literal = position;
+					rolled = false;
+				} else {
+					// slide the window by one byte
+					final int old = buffer[position] & 0xff;
+					if (position + block < length) {
+						a += (buffer[position + block] & 0xff) - old;
+						b += a - block * old;
+					} else {
+						rolled = false;
+					}
+					position++;
+				}
+			}
+		}
+
+		writer.literal(buffer, literal, length - literal);
+		writer.end(total, whole.digest());
+		return writer.literal;
+	}
+
+	/**
+	 * Rebuilds a file from the old copy and a delta stream. The whole stream
+	 * is read even if writing fails, so the session stays in sync.
+	 *
+	 * @param in
+	 *            source of delta frames
+	 * @param basis
+	 *            the old copy the signature described
+	 * @param target
+	 *            where to write the new copy
+	 * @param blockSize
+	 *            block size of the signature
+	 * @return length of the new copy
+	 * @throws IOException
+	 *             if the stream breaks, or the new copy could not be written
+	 *             or does not match the sender's checksum
+	 */
+	protected static long rebuild(final FrameSource in, final File basis,
+			final File target, final int blockSize) throws IOException {
+		final MessageDigest digest = strongSum();
+		final ByteBuffer block = ByteBuffer.allocate(blockSize);
+		IOException failure = null;
+		FileChannel old = null;
+		FileChannel out = null;
+		long written = 0;
+
+		try {
+			try {
+				old = basis.isFile() ? FileChannel.open(basis.toPath(),
+						StandardOpenOption.READ) : null;
+				out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+			} catch (IOException ioe) {
+				failure = ioe;
+			}
+
+			while (true) {
+				final byte[] frame = in.next();
+				if (frame.length == 0) {
+					throw new IOException("Empty delta frame");
+				}
+				if (frame[0] == END) {
+					final DataInputStream end = new DataInputStream(
+							new ByteArrayInputStream(frame, 1, frame.length - 1));
+					final long length = end.readLong();
+					final byte[] sum = new byte[STRONG_LENGTH];
+					end.readFully(sum);
+					if (failure == null && (written != length
+							|| !MessageDigest.isEqual(sum, digest.digest()))) {
+						failure = new IOException("Rebuilt file does not match");
+					}
+					break;
+				}
+				if (failure != null) {
+					continue;
+				}
+
+				try {
+					if (frame[0] == LITERAL) {
+						digest.update(frame, 1, frame.length - 1);
+						final ByteBuffer data = ByteBuffer.wrap(frame, 1,
+								frame.length - 1);
+						while (data.hasRemaining()) {
+							out.write(data);
+						}
+						written += frame.length - 1;
+					} else if (frame[0] == COPY) {
+						final DataInputStream copy = new DataInputStream(
+								new ByteArrayInputStream(frame, 1, frame.length - 1));
+						final long first = copy.readInt();
+						final long count = copy.readInt();
+						if (old == null || first < 0 || count <= 0
+								|| (first + count) * blockSize > old.size()) {
+							throw new IOException("Block reference out of range");
+						}
+						for (long i = first; i < first + count; i++) {
+							block.clear();
+							while (block.hasRemaining()) {
+								if (old.read(block, i * blockSize + block.position()) < 0) {
+									throw new IOException("Old copy shrank");
+								}
+							}
+							digest.update(block.array(), 0, blockSize);
+							block.flip();
+							while (block.hasRemaining()) {
+								out.write(block);
+							}
+							written += blockSize;
+						}
+					} else {
+						throw new IOException("Unknown delta frame " + frame[0]);
+					}
+				} catch (IOException ioe) {
+					failure = ioe;
+				}
+			}
+		} finally {
+			if (old != null) {
+				old.close();
+			}
+			if (out != null) {
+				out.close();
+			}
+		}
+
+		if (failure != null) {
+			if (target.exists() && !target.delete()) {
+				log.warn("Could not delete %s", target);
+			}
+			throw failure;
+		}
+		return written;
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * @return a fresh strong checksum
+	 */
+	private static MessageDigest strongSum() {
+		try {
+			return MessageDigest.getInstance(STRONG_SUM);
+		} catch (NoSuchAlgorithmException nsae) {
+			// every Java platform has to provide it
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	/**
+	 * Computes the rolling checksum of a block from scratch: the byte sum and
+	 * the position-weighted byte sum, 16 bits each.
+	 */
+	private static int weakSum(final byte[] data, final int length) {
+		int a = 0;
+		int b = 0;
+		for (int k = 0; k < length; k++) {
+			final int x = data[k] & 0xff;
+			a += x;
+			b += (length - k) * x;
+		}
+		return (b & 0xffff) << 16 | (a & 0xffff);
+	}
+
+	/**
+	 * Fills the buffer from the stream.
+	 *
+	 * @return false if the stream ended first
+	 */
+	private static boolean readBlock(final InputStream in, final byte[] block)
+			throws IOException {
+		int filled = 0;
+		while (filled < block.length) {
+			final int amt = in.read(block, filled, block.length - filled);
+			if (amt < 0) {
+				return false;
+			}
+			filled += amt;
+		}
+		return true;
+	}
+
+}
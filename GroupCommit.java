@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Makes completed uploads durable before they are acknowledged. An upload is
+ * written to a partial file; committing it forces the partial file to disk,
+ * renames it over its target, and forces the directory so the rename
+ * survives a crash. One thread commits for the whole process: uploads that
+ * finish while a batch is being forced wait for the next batch and are
+ * committed together, so each directory is forced once per batch rather
+ * than once per upload, and the file forces reach the file system back to
+ * back, where its journal can fold them into a single flush. Files renamed
+ * into place by their owner, e.g. the chunk store's, can be forced in the
+ * same batches.
+ */
+public class GroupCommit {
+	private static final Log log = Log.forContext("group commit");
+
+	/* Most uploads committed in one pass */
+	private static final int MAX_BATCH = 256;
+
+	private static boolean durable = true;
+	private static GroupCommit shared;
+
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+	/* Passes made and uploads committed, for reporting */
+	private long batches;
+	private long commits;
+
+	/**
+	 * One upload waiting to be committed, or files and directories waiting
+	 * to be forced.
+	 */
+	private static final class Request {
+		/* Forced then renamed over target; null if only syncing */
+		private final Path source;
+		private final Path target;
+
+		/* Forced, files first, without renaming anything */
+		private final Collection<Path> files;
+		private final Collection<Path> directories;
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		private Request(final Path source, final Path target,
+				final Collection<Path> files, final Collection<Path> directories) {
+			this.source = source;
+			this.target = target;
+			this.files = files;
+			this.directories = directories;
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Default constructor. Starts the commit thread.
+	 */
+	private GroupCommit() {
+		final Thread committer = new Thread(this::run, "group-commit");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Chooses whether uploads are forced to disk. Without it they are only
+	 * renamed into place, which is atomic but may be lost in a crash.
+	 */
+	protected static synchronized void configure(final boolean on) {
+		durable = on;
+	}
+
+	/**
+	 * @return the process-wide committer, started on first use
+	 */
+	protected static synchronized GroupCommit shared() {
+		if (shared == null) {
+			shared = new GroupCommit();
+		}
+		return shared;
+	}
+
+	/**
+	 * Queues a completed partial file to be renamed over its target.
+	 *
+	 * @param source
+	 *            the completed partial file
+	 * @param target
+	 *            name the upload should appear under
+	 * @return completes once the target holds the upload, on disk if uploads
+	 *         are durable, or exceptionally with the IOException that stopped
+	 *         it
+	 */
+	protected CompletableFuture<Void> submit(final Path source, final Path target) {
+		final Request request = new Request(source, target,
+				Collections.emptyList(), Collections.emptyList());
+		if (isDurable()) {
+			queue.add(request);
+		} else {
+			try {
+				move(source, target);
+				request.done.complete(null);
+			} catch (IOException ioe) {
+				request.done.completeExceptionally(ioe);
+			}
+		}
+		return request.done;
+	}
+
+	/**
+	 * Commits a completed partial file and waits for it; see
+	 * {@link #submit}.
+	 *
+	 * @throws IOException
+	 *             if the upload could not be forced or renamed
+	 */
+	protected void commit(final Path source, final Path target)
+			throws IOException {
+		await(submit(source, target), target);
+	}
+
+	/**
+	 * Forces files already in place, then the directories holding them, in
+	 * the next batch, and waits for it. Does nothing if uploads are not
+	 * durable. Used where a rename has to happen elsewhere, e.g. under a
+	 * lock, but still needs forcing before it is acknowledged.
+	 *
+	 * @param files
+	 *            files whose data must reach the disk
+	 * @param directories
+	 *            directories whose entries must reach the disk; failing to
+	 *            force one is only logged, as for a commit
+	 * @throws IOException
+	 *             if a file could not be forced
+	 */
+	protected void sync(final Collection<Path> files,
+			final Collection<Path> directories) throws IOException {
+		if (!isDurable() || files.isEmpty() && directories.isEmpty()) {
+			return;
+		}
+		final Request request = new Request(null, null, files, directories);
+		queue.add(request);
+		await(request.done, files.isEmpty() ? directories.iterator().next()
+				: files.iterator().next());
+	}
+
+	/**
+	 * @return mean uploads committed per pass, 0 before the first
+	 */
+	protected synchronized double meanBatch() {
+		return batches == 0 ? 0 : (double) commits / batches;
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	private static synchronized boolean isDurable() {
+		return durable;
+	}
+
+	/**
+	 * Waits for a request, rethrowing the IOException that failed it.
+	 */
+	private static void await(final CompletableFuture<Void> done,
+			final Path path) throws IOException {
+		try {
+			done.get();
+		} catch (ExecutionException ee) {
+			throw ee.getCause() instanceof IOException
+					? (IOException) ee.getCause()
+					: new IOException(ee.getCause());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while committing " + path, ie);
+		}
+	}
+
+	/**
+	 * Takes whatever has queued up since the last pass and commits it: every
+	 * file is forced, then renamed, then each directory touched is forced
+	 * once. An upload that fails a step is failed alone.
+	 */
+	private void run() {
+		final List<Request> batch = new ArrayList<>();
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException ie) {
+				return;
+			}
+			queue.drainTo(batch, MAX_BATCH - 1);
+
+			final List<Request> forced = new ArrayList<>();
+			for (final Request request : batch) {
+				try {
+					if (request.source != null) {
+						force(request.source, false);
+					}
+					for (final Path file : request.files) {
+						force(file, false);
+					}
+					forced.add(request);
+				} catch (IOException ioe) {
+					request.done.completeExceptionally(ioe);
+				}
+			}
+
+			final List<Request> moved = new ArrayList<>();
+			final Set<Path> directories = new LinkedHashSet<>();
+			for (final Request request : forced) {
+				try {
+					if (request.source != null) {
+						move(request.source, request.target);
+						directories.add(request.target.toAbsolutePath().getParent());
+					}
+					for (final Path directory : request.directories) {
+						directories.add(directory.toAbsolutePath());
+					}
+					moved.add(request);
+				} catch (IOException ioe) {
+					request.done.completeExceptionally(ioe);
+				}
+			}
+
+			for (final Path directory : directories) {
+				try {
+					force(directory, true);
+				} catch (IOException ioe) {
+					// some platforms cannot open a directory to force it
+					log.warn("Could not force %s: %s", directory, ioe);
+				}
+			}
+			for (final Request request : moved) {
+				request.done.complete(null);
+			}
+
+			// a directory-only sync follows a file sync for the same upload
+			int uploads = 0;
+			for (final Request request : batch) {
+				if (request.source != null || !request.files.isEmpty()) {
+					uploads++;
+				}
+			}
+			synchronized (this) {
+				batches++;
+				commits += uploads;
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Forces a file's data to disk, or a directory's entries.
+	 */
+	private static void force(final Path path, final boolean directory)
+			throws IOException {
+		// some platforms only force files opened for writing
+		try (FileChannel channel = FileChannel.open(path, directory
+				? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+			channel.force(directory);
+		}
+	}
+
+	/**
+	 * Renames source over target, atomically where the file system allows.
+	 */
+	private static void move(final Path source, final Path target)
+			throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException amnse) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+}
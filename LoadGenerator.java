@@ -0,0 +1,556 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A non-interactive load generator. Opens many sessions against a server at
+ * once, each running a random mix of put, get and ls for a fixed time with
+ * file sizes drawn from a weighted distribution, then reports operations and
+ * megabytes per second and latency percentiles per operation. Operations
+ * started during the warm-up are run but not counted.
+ */
+public class LoadGenerator {
+	/* Operations the mix can name */
+	private static final String[] OPERATIONS = { FTPApplication.PUT,
+			FTPApplication.GET, FTPApplication.LS };
+
+	protected static final int DEFAULT_SESSIONS = 100;
+	protected static final int DEFAULT_DURATION = 30;
+	protected static final int DEFAULT_WARMUP = 5;
+	protected static final String DEFAULT_MIX = "put=20,get=70,ls=10";
+	protected static final String DEFAULT_SIZES = "4K=50,64K=30,1M=15,16M=5";
+
+	/* Prefix of the files the generator leaves on the server */
+	private static final String PREFIX = "load-";
+
+	/* Progress is printed this often while the load runs */
+	private static final long PROGRESS_INTERVAL = 1000000000L;
+
+	/* Pause before a failed session connects again */
+	private static final long RECONNECT_DELAY = 100;
+
+	private final int port;
+	private final InetAddress ip;
+	private final File workDirectory;
+	private final int sessions;
+	private final int[] mix = new int[OPERATIONS.length];
+	private long[] sizes;
+	private int[] sizeWeights;
+	private File[] sources;
+
+	protected boolean requestBinary = true;
+	protected boolean requestPipelining = true;
+
+	/* Window in which operations are counted, in System.nanoTime() */
+	private long measureFrom;
+	private long deadline;
+
+	private final Map<String, ServerMetrics.Histogram> latencies =
+			new LinkedHashMap<>();
+	private final Map<String, LongAdder> errors = new LinkedHashMap<>();
+	private final Map<String, LongAdder> bytes = new LinkedHashMap<>();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder transferred = new LongAdder();
+	private final LongAdder refused = new LongAdder();
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Default constructor.
+	 *
+	 * @param port
+	 *            server port
+	 * @param ip
+	 *            server address
+	 * @param workDirectory
+	 *            where upload sources and downloads are kept
+	 * @param sessions
+	 *            number of concurrent sessions
+	 */
+	protected LoadGenerator(final int port, final InetAddress ip,
+			final File workDirectory, final int sessions) {
+		this.port = port;
+		this.ip = ip;
+		this.workDirectory = workDirectory;
+		this.sessions = sessions;
+		for (final String operation : OPERATIONS) {
+			latencies.put(operation, new ServerMetrics.Histogram());
+			errors.put(operation, new LongAdder());
+			bytes.put(operation, new LongAdder());
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Prints usage message to the console.
+	 */
+	private static void printUsage() {
+		System.out.printf("Usage: LoadGenerator -i <ip> -p <port> [options]%n%n");
+		System.out.printf("\tWhere valid options include: %n");
+		System.out.printf("\t\t -h \t Prints usage %n");
+		System.out.printf("\t\t -c \t Concurrent sessions (default %d) %n",
+				DEFAULT_SESSIONS);
+		System.out.printf("\t\t -d \t Seconds to measure (default %d) %n",
+				DEFAULT_DURATION);
+		System.out.printf("\t\t -w \t Seconds of warm-up (default %d) %n",
+				DEFAULT_WARMUP);
+		System.out.printf("\t\t -m \t Operation weights (default %s) %n",
+				DEFAULT_MIX);
+		System.out.printf("\t\t -f \t File size weights (default %s) %n",
+				DEFAULT_SIZES);
+		System.out.printf("\t\t -o \t Work directory (default a new temporary one) %n");
+		System.out.printf("\t\t -t \t Text framing only %n");
+		System.out.printf("\t\t -x \t Disable compression %n");
+		System.out.printf("\t\t -s \t Wait for each reply, no pipelining %n");
+	}
+
+	/**
+	 * Parses the operation mix, e.g. "put=20,get=70,ls=10".
+	 *
+	 * @return false if the mix names an unknown operation or weighs nothing
+	 */
+	private boolean parseMix(final String spec) {
+		int total = 0;
+		for (final String entry : spec.split(",")) {
+			final String[] pair = entry.trim().split("=");
+			int index = -1;
+			for (int i = 0; i < OPERATIONS.length; i++) {
+				if (OPERATIONS[i].equalsIgnoreCase(pair[0])) {
+					index = i;
+				}
+			}
+			if (index < 0 || pair.length != 2) {
+				System.err.printf("Bad operation weight: %s%n", entry);
+				return false;
+			}
+			mix[index] = Integer.parseInt(pair[1]);
+			if (mix[index] < 0) {
+				return false;
+			}
+			total += mix[index];
+		}
+		return total > 0;
+	}
+
+	/**
+	 * Parses the file size distribution, e.g. "4K=50,1M=10". Sizes take an
+	 * optional K, M or G suffix.
+	 *
+	 * @return false if a size or weight is malformed, or all weights are 0
+	 */
+	private boolean parseSizes(final String spec) {
+		final String[] entries = spec.split(",");
+		sizes = new long[entries.length];
+		sizeWeights = new int[entries.length];
+		int total = 0;
+		for (int i = 0; i < entries.length; i++) {
+			final String[] pair = entries[i].trim().split("=");
+			if (pair.length != 2) {
+				System.err.printf("Bad size weight: %s%n", entries[i]);
+				return false;
+			}
+			sizes[i] = parseSize(pair[0]);
+			sizeWeights[i] = Integer.parseInt(pair[1]);
+			if (sizes[i] < 0 || sizeWeights[i] < 0) {
+				return false;
+			}
+			total += sizeWeights[i];
+		}
+		return total > 0;
+	}
+
+	/**
+	 * @return a byte count such as "64K" as a number
+	 */
+	private static long parseSize(final String size) {
+		final String upper = size.toUpperCase(Locale.ROOT);
+		final char unit = upper.charAt(upper.length() - 1);
+		final int shift = unit == 'K' ? 10 : unit == 'M' ? 20 : unit == 'G' ? 30 : 0;
+		final String digits = shift == 0 ? upper
+				: upper.substring(0, upper.length() - 1);
+		return Long.parseLong(digits) << shift;
+	}
+
+	/**
+	 * @return an index drawn with probability proportional to its weight
+	 */
+	private static int pick(final int[] weights) {
+		int total = 0;
+		for (final int weight : weights) {
+			total += weight;
+		}
+		int draw = ThreadLocalRandom.current().nextInt(total);
+		for (int i = 0; i < weights.length; i++) {
+			draw -= weights[i];
+			if (draw < 0) {
+				return i;
+			}
+		}
+		return weights.length - 1;
+	}
+
+	/**
+	 * @return name under which the file of a size is fetched by get
+	 */
+	private String seedName(final int size) {
+		return PREFIX + "seed-" + sizes[size] + ".bin";
+	}
+
+	/**
+	 * Writes one file of random bytes per size for uploads and puts a copy of
+	 * each on the server for downloads.
+	 *
+	 * @return false if the server could not be seeded
+	 */
+	private boolean prepare() throws IOException {
+		final File files = new File(workDirectory, "files");
+		Files.createDirectories(files.toPath());
+		sources = new File[sizes.length];
+		final byte[] block = new byte[1024 * 1024];
+		final Random random = new Random(sizes.length);
+		for (int i = 0; i < sizes.length; i++) {
+			sources[i] = new File(files, PREFIX + sizes[i] + ".bin");
+			if (sources[i].length() == sizes[i]) {
+				continue;
+			}
+			try (OutputStream out = new FileOutputStream(sources[i])) {
+				for (long left = sizes[i]; left > 0; left -= block.length) {
+					random.nextBytes(block);
+					out.write(block, 0, (int) Math.min(left, block.length));
+				}
+			}
+		}
+
+		final FTPClient seeder = open(files);
+		if (seeder == null) {
+			return false;
+		}
+		try {
+			for (int i = 0; i < sizes.length; i++) {
+				seeder.awaitPrompt();
+				final String reply = seeder.upload(sources[i], seedName(i), 0);
+				if (!FTPApplication.PUT_OK.equals(reply)) {
+					System.err.printf("Could not seed %s: %s%n", seedName(i), reply);
+					return false;
+				}
+			}
+		} finally {
+			seeder.handleExit();
+		}
+		return true;
+	}
+
+	/**
+	 * Opens a quiet session working out of a directory.
+	 *
+	 * @return the session, or null if it could not be established
+	 */
+	private FTPClient open(final File directory) {
+		final FTPClient client = new FTPClient(port, ip, directory.getPath());
+		client.quiet = true;
+		client.requestBinary = requestBinary;
+		client.requestPipelining = requestPipelining;
+		return client.connect() ? client : null;
+	}
+
+	/**
+	 * Runs random operations on one session until the deadline. A session
+	 * whose connection fails is counted against the operation it was running
+	 * and connects again.
+	 *
+	 * @param id
+	 *            number of the session, which keeps its uploads and downloads
+	 *            apart from the other sessions'
+	 */
+	private void runSession(final int id) {
+		final File directory = new File(workDirectory, "session" + id);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			System.err.printf("Could not create %s%n", directory);
+			return;
+		}
+
+		FTPClient client = null;
+		while (System.nanoTime() < deadline) {
+			if (client == null) {
+				client = open(directory);
+				if (client == null) {
+					if (System.nanoTime() >= measureFrom) {
+						refused.increment();
+					}
+					try {
+						Thread.sleep(RECONNECT_DELAY);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					continue;
+				}
+			}
+
+			final String operation = OPERATIONS[pick(mix)];
+			final int size = pick(sizeWeights);
+			final long started = System.nanoTime();
+			long count = 0;
+			boolean success;
+			try {
+				client.awaitPrompt();
+				if (operation.equals(FTPApplication.PUT)) {
+					final String reply = client.upload(sources[size],
+							PREFIX + id + "-" + sizes[size] + ".bin", 0);
+					success = FTPApplication.PUT_OK.equals(reply);
+					count = sizes[size];
+				} else if (operation.equals(FTPApplication.GET)) {
+					count = client.download(seedName(size), 0, FTPApplication.ERROR);
+					success = count >= 0;
+				} else {
+					client.list();
+					success = true;
+				}
+			} catch (IOException | RuntimeException e) {
+				success = false;
+				client.terminate();
+				client = null;
+			}
+			record(operation, started, success, count);
+		}
+
+		if (client != null) {
+			client.handleExit();
+		}
+	}
+
+	/**
+	 * Counts an operation if it started inside the measured window.
+	 */
+	private void record(final String operation, final long started,
+			final boolean success, final long count) {
+		if (started < measureFrom) {
+			return;
+		}
+		if (success) {
+			latencies.get(operation).record(System.nanoTime() - started);
+			bytes.get(operation).add(count);
+			completed.increment();
+			transferred.add(count);
+		} else {
+			errors.get(operation).increment();
+		}
+	}
+
+	/**
+	 * Starts the sessions, prints progress once a second and waits for them
+	 * to finish.
+	 *
+	 * @return seconds from the end of the warm-up until the last session
+	 *         finished
+	 */
+	private double run(final int duration, final int warmup)
+			throws InterruptedException {
+		final long now = System.nanoTime();
+		measureFrom = now + warmup * 1000000000L;
+		deadline = measureFrom + duration * 1000000000L;
+
+		final Thread[] threads = new Thread[sessions];
+		for (int i = 0; i < sessions; i++) {
+			final int id = i;
+			threads[i] = new Thread(() -> runSession(id), "load-" + i);
+			threads[i].start();
+		}
+
+		long lastCompleted = 0;
+		long lastTransferred = 0;
+		long lastReport = System.nanoTime();
+		while (System.nanoTime() < deadline) {
+			Thread.sleep(PROGRESS_INTERVAL / 1000000);
+			final long time = System.nanoTime();
+			final double seconds = (time - lastReport) / 1e9;
+			final long ops = completed.sum();
+			final long moved = transferred.sum();
+			if (time >= measureFrom) {
+				System.out.printf(Locale.ROOT, "%4d s %10.1f ops/s %10.1f MB/s%n",
+						(time - measureFrom) / 1000000000L,
+						(ops - lastCompleted) / seconds,
+						(moved - lastTransferred) / seconds / (1024 * 1024));
+			} else {
+				System.out.printf("warming up%n");
+			}
+			lastCompleted = ops;
+			lastTransferred = moved;
+			lastReport = time;
+		}
+
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		return Math.max(1e-9, (System.nanoTime() - measureFrom) / 1e9);
+	}
+
+	/**
+	 * Prints totals and one line per operation: count, errors, throughput
+	 * and latency percentiles in microseconds.
+	 */
+	private void report(final double seconds) {
+		long failures = 0;
+		for (final LongAdder adder : errors.values()) {
+			failures += adder.sum();
+		}
+		System.out.printf(Locale.ROOT,
+				"%d sessions, %.1f s measured, %d connections refused%n", sessions,
+				seconds, refused.sum());
+		System.out.printf(Locale.ROOT,
+				"%d operations (%.1f/s), %d errors, %.1f MB (%.1f MB/s)%n",
+				completed.sum(), completed.sum() / seconds, failures,
+				transferred.sum() / (1024.0 * 1024), transferred.sum() / seconds
+						/ (1024 * 1024));
+		System.out.printf(Locale.ROOT,
+				"%-6s %10s %8s %10s %10s %10s %10s %10s %10s%n", "op", "count",
+				"errors", "ops/s", "MB/s", "p50 us", "p99 us", "p999 us", "max us");
+		for (final String operation : OPERATIONS) {
+			final ServerMetrics.Histogram histogram = latencies.get(operation);
+			if (histogram.count() == 0 && errors.get(operation).sum() == 0) {
+				continue;
+			}
+			System.out.printf(Locale.ROOT,
+					"%-6s %10d %8d %10.1f %10.1f %10d %10d %10d %10d%n", operation,
+					histogram.count(), errors.get(operation).sum(),
+					histogram.count() / seconds,
+					bytes.get(operation).sum() / seconds / (1024 * 1024),
+					histogram.percentile(50) / 1000,
+					histogram.percentile(99) / 1000,
+					histogram.percentile(99.9) / 1000, histogram.max() / 1000);
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Driver for LoadGenerator
+	 *
+	 * @param args
+	 *            Command-line arguments
+	 */
+	public static void main(final String[] args) {
+		int port = -1;
+		InetAddress ip = null;
+		int sessions = DEFAULT_SESSIONS;
+		int duration = DEFAULT_DURATION;
+		int warmup = DEFAULT_WARMUP;
+		String mix = DEFAULT_MIX;
+		String sizes = DEFAULT_SIZES;
+		String directory = null;
+		boolean textOnly = false;
+		boolean sequential = false;
+
+		// Process arguments
+		boolean helpRequested = false;
+		for (int index = 0; !helpRequested && index < args.length; index++) {
+			if (args[index].length() != 2 || args[index].charAt(0) != '-') {
+				helpRequested = true;
+				continue;
+			}
+			final char option = args[index].charAt(1);
+			if ("tsxh".indexOf(option) < 0 && index + 1 >= args.length) {
+				System.err.println("Value expected.");
+				helpRequested = true;
+				continue;
+			}
+			switch (option) {
+			case 'p':
+				port = Integer.parseInt(args[++index]);
+				break;
+			case 'i':
+				try {
+					ip = InetAddress.getByName(args[++index]);
+				} catch (UnknownHostException uhe) {
+					System.err.printf("Bad address: %s%n", uhe);
+					helpRequested = true;
+				}
+				break;
+			case 'c':
+				sessions = Integer.parseInt(args[++index]);
+				helpRequested = sessions <= 0;
+				break;
+			case 'd':
+				duration = Integer.parseInt(args[++index]);
+				helpRequested = duration <= 0;
+				break;
+			case 'w':
+				warmup = Integer.parseInt(args[++index]);
+				helpRequested = warmup < 0;
+				break;
+			case 'm':
+				mix = args[++index];
+				break;
+			case 'f':
+				sizes = args[++index];
+				break;
+			case 'o':
+				directory = args[++index];
+				break;
+			case 't':
+				textOnly = true;
+				break;
+			case 's':
+				sequential = true;
+				break;
+			case 'x':
+				FTPApplication.compression = false;
+				break;
+			default:
+				helpRequested = true;
+				break;
+			}
+		}
+
+		if (helpRequested || port <= 0 || ip == null) {
+			printUsage();
+			return;
+		}
+
+		try {
+			final File work = directory != null ? new File(directory)
+					: Files.createTempDirectory("secftp-load").toFile();
+			final LoadGenerator generator = new LoadGenerator(port, ip, work,
+					sessions);
+			if (!generator.parseMix(mix) || !generator.parseSizes(sizes)) {
+				printUsage();
+				return;
+			}
+			generator.requestBinary = !textOnly;
+			generator.requestPipelining = !sequential;
+
+			System.out.printf("Preparing files in %s ... %n", work);
+			if (!generator.prepare()) {
+				return;
+			}
+			System.out.printf("Running %d sessions: %d s warm-up, %d s measured%n",
+					sessions, warmup, duration);
+			generator.report(generator.run(duration, warmup));
+		} catch (IOException e) {
+			System.err.printf("%s Load generation failed%n", e);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (NumberFormatException nfe) {
+			System.err.printf("%s Bad number%n", nfe);
+			printUsage();
+		}
+	}
+
+}
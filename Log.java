@@ -0,0 +1,242 @@
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled server logging that keeps the console off the transfer paths.
+ * A message below the configured level costs one comparison. One at or
+ * above it is queued unformatted in a fixed ring buffer that producers claim
+ * slots in with a compare-and-set, and a background thread formats and
+ * prints whatever has queued up in one write per stream. When the ring is
+ * full, messages are dropped and counted rather than making a session wait.
+ * Each logger carries a context, e.g. the session it logs for, that
+ * prefixes its messages.
+ */
+public class Log {
+	/* Message severities, most severe first */
+	protected enum Level {
+		ERROR, WARN, INFO, DEBUG
+	}
+
+	/* Ring slots; a power of two */
+	private static final int CAPACITY = 1 << 13;
+	private static final int MASK = CAPACITY - 1;
+
+	/* How long the writer sleeps when the ring is empty */
+	private static final long IDLE_NANOS = 10000000L;
+
+	private static volatile Level threshold = Level.INFO;
+
+	private static final Record[] records = new Record[CAPACITY];
+
+	/* Ticket + 1 of the record last published in each slot */
+	private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+
+	/* Tickets handed out to producers, and records the writer has taken */
+	private static final AtomicLong claimed = new AtomicLong();
+	private static volatile long consumed;
+
+	private static final LongAdder dropped = new LongAdder();
+	private static Thread writer;
+
+	private final String context;
+
+	/**
+	 * One message waiting to be written.
+	 */
+	private static final class Record {
+		private final long millis = System.currentTimeMillis();
+		private final Level level;
+		private final String context;
+		private final String format;
+		private final Object[] args;
+
+		private Record(final Level level, final String context,
+				final String format, final Object[] args) {
+			this.level = level;
+			this.context = context;
+			this.format = format;
+			this.args = args;
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	private Log(final String context) {
+		this.context = context;
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Sets the least severe level that is written.
+	 *
+	 * @param level
+	 *            e.g. "info" or "debug"
+	 * @return false if the level is unknown
+	 */
+	protected static boolean configure(final String level) {
+		for (final Level candidate : Level.values()) {
+			if (candidate.name().equalsIgnoreCase(level)) {
+				threshold = candidate;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a logger whose messages are prefixed with a context.
+	 *
+	 * @param context
+	 *            e.g. the session or component logging
+	 * @return the logger
+	 */
+	protected static Log forContext(final String context) {
+		startWriter();
+		return new Log(context);
+	}
+
+	/**
+	 * @return true if messages of a level are written, e.g. to skip building
+	 *         their arguments
+	 */
+	protected static boolean enabled(final Level level) {
+		return level.compareTo(threshold) <= 0;
+	}
+
+	/**
+	 * @return messages dropped because the ring was full
+	 */
+	protected static long dropped() {
+		return dropped.sum();
+	}
+
+	protected void error(final String format, final Object... args) {
+		log(Level.ERROR, format, args);
+	}
+
+	protected void warn(final String format, final Object... args) {
+		log(Level.WARN, format, args);
+	}
+
+	protected void info(final String format, final Object... args) {
+		log(Level.INFO, format, args);
+	}
+
+	protected void debug(final String format, final Object... args) {
+		log(Level.DEBUG, format, args);
+	}
+
+	/**
+	 * Queues a message if its level is enabled. The arguments are formatted
+	 * later on the writer thread, so they must not change afterwards.
+	 *
+	 * @param level
+	 *            severity of the message
+	 * @param format
+	 *            printf format
+	 * @param args
+	 *            format arguments
+	 */
+	protected void log(final Level level, final String format,
+			final Object... args) {
+		if (!enabled(level)) {
+			return;
+		}
+		long ticket;
+		do {
+			ticket = claimed.get();
+			if (ticket - consumed >= CAPACITY) {
+				dropped.increment();
+				return;
+			}
+		} while (!claimed.compareAndSet(ticket, ticket + 1));
+
+		final int slot = (int) ticket & MASK;
+		records[slot] = new Record(level, context, format, args);
+		// publishing the ticket makes the record visible to the writer
+		published.set(slot, ticket + 1);
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Starts the writer thread on first use, and flushes the ring on exit.
+	 */
+	private static synchronized void startWriter() {
+		if (writer != null) {
+			return;
+		}
+		writer = new Thread(() -> {
+			while (true) {
+				if (!drain()) {
+					LockSupport.parkNanos(IDLE_NANOS);
+				}
+			}
+		}, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+	}
+
+	/**
+	 * Writes every record published so far, errors and warnings to standard
+	 * error and the rest to standard output.
+	 *
+	 * @return true if anything was written
+	 */
+	private static synchronized boolean drain() {
+		final StringBuilder out = new StringBuilder();
+		final StringBuilder err = new StringBuilder();
+		long next = consumed;
+		while (published.get((int) next & MASK) == next + 1) {
+			final int slot = (int) next & MASK;
+			final Record record = records[slot];
+			records[slot] = null;
+			next++;
+			consumed = next;
+			append(record.level.compareTo(Level.WARN) <= 0 ? err : out, record);
+		}
+		write(System.out, out);
+		write(System.err, err);
+		return out.length() > 0 || err.length() > 0;
+	}
+
+	/**
+	 * Formats one record as a line: time, level, context and message.
+	 */
+	private static void append(final StringBuilder lines, final Record record) {
+		String message;
+		try {
+			message = String.format(record.format, record.args);
+		} catch (RuntimeException re) {
+			message = record.format + " (" + re + ")";
+		}
+		int end = message.length();
+		while (end > 0 && (message.charAt(end - 1) == '\n'
+				|| message.charAt(end - 1) == '\r')) {
+			end--;
+		}
+		lines.append(String.format(Locale.ROOT, "%tT.%<tL %-5s [%s] ",
+				record.millis, record.level, record.context));
+		lines.append(message, 0, end).append(System.lineSeparator());
+	}
+
+	private static void write(final PrintStream stream, final StringBuilder lines) {
+		if (lines.length() > 0) {
+			stream.print(lines);
+			stream.flush();
+		}
+	}
+
+}
@@ -0,0 +1,409 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide server counters: per-command latency histograms, file data
+ * bytes in and out, sessions, cache hit rates, group commit batches and
+ * work turned away as busy. Recording never locks, so sessions can record
+ * on every command. The numbers are reported by the stats command, over
+ * JMX, and optionally printed at a fixed interval.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+	private static final Log log = Log.forContext("metrics");
+
+	/* Name under which the metrics are registered with JMX */
+	protected static final String OBJECT_NAME = "secftp:type=ServerMetrics";
+
+	/* Commands timed separately; everything else counts as OTHER */
+	private static final String[] COMMANDS = { FTPApplication.GET,
+			FTPApplication.PUT, FTPApplication.LS, FTPApplication.LIST,
+			FTPApplication.REST, FTPApplication.DPUT, FTPApplication.CPUT,
+			FTPApplication.HELLO, FTPApplication.STATS, FTPApplication.EXIT };
+	private static final String OTHER = "other";
+
+	private static ServerMetrics shared;
+
+	private final long started = System.nanoTime();
+	private final Map<String, Histogram> latencies = new HashMap<>();
+	private final LongAdder activeSessions = new LongAdder();
+	private final LongAdder totalSessions = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * A log-linear latency histogram in the manner of HdrHistogram: values
+	 * below 2 * SUB_BUCKETS have a bucket each, larger ones share a bucket
+	 * with values that agree in their top five bits, so every bucket is
+	 * within about 6% of the values it holds.
+	 */
+	protected static final class Histogram {
+		private static final int SUB_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+		/**
+		 * Records one value.
+		 *
+		 * @param value
+		 *            a non-negative measurement, e.g. nanoseconds
+		 */
+		protected void record(final long value) {
+			final long v = Math.max(0, value);
+			counts.incrementAndGet(index(v));
+			count.increment();
+			sum.add(v);
+			max.accumulate(v);
+		}
+
+		/**
+		 * @return number of values recorded
+		 */
+		protected long count() {
+			return count.sum();
+		}
+
+		/**
+		 * @return mean of the values recorded, 0 if there are none
+		 */
+		protected double mean() {
+			final long n = count.sum();
+			return n == 0 ? 0 : (double) sum.sum() / n;
+		}
+
+		/**
+		 * @return largest value recorded
+		 */
+		protected long max() {
+			return max.get();
+		}
+
+		/**
+		 * Estimates a percentile from the buckets.
+		 *
+		 * @param percentile
+		 *            between 0 and 100
+		 * @return the middle of the bucket holding that percentile
+		 */
+		protected long percentile(final double percentile) {
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				total += counts.get(i);
+			}
+			final long rank = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts.get(i);
+				if (seen >= Math.max(1, rank)) {
+					return Math.min(max(), (lowest(i) + lowest(i + 1) - 1) / 2);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * @return bucket of a value
+		 */
+		private static int index(final long value) {
+			if (value < 2 * SUB_BUCKETS) {
+				return (int) value;
+			}
+			final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+			return shift * SUB_BUCKETS + (int) (value >>> shift);
+		}
+
+		/**
+		 * @return smallest value that falls in a bucket
+		 */
+		private static long lowest(final int index) {
+			if (index < 2 * SUB_BUCKETS) {
+				return index;
+			}
+			final int shift = index / SUB_BUCKETS - 1;
+			return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Default constructor. Creates a histogram per timed command.
+	 */
+	protected ServerMetrics() {
+		for (final String command : COMMANDS) {
+			latencies.put(command, new Histogram());
+		}
+		latencies.put(OTHER, new Histogram());
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Returns the process-wide metrics, registering them with JMX on first
+	 * use.
+	 *
+	 * @return the shared metrics
+	 */
+	protected static synchronized ServerMetrics shared() {
+		if (shared == null) {
+			shared = new ServerMetrics();
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(shared,
+						new ObjectName(OBJECT_NAME));
+			} catch (JMException | SecurityException e) {
+				log.warn("Metrics not available over JMX: %s", e);
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Prints the report every interval seconds on a daemon thread.
+	 *
+	 * @param interval
+	 *            seconds between reports, 0 to never print
+	 */
+	protected static void startReporting(final long interval) {
+		if (interval <= 0) {
+			return;
+		}
+		final ScheduledExecutorService reporter =
+				Executors.newSingleThreadScheduledExecutor(task -> {
+					final Thread thread = new Thread(task, "metrics-reporter");
+					thread.setDaemon(true);
+					return thread;
+				});
+		final ServerMetrics metrics = shared();
+		reporter.scheduleAtFixedRate(() -> System.out.print(metrics.report()),
+				interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Records how long a command took.
+	 *
+	 * @param command
+	 *            name of the command run, null if it was not one
+	 * @param nanos
+	 *            time spent processing it
+	 */
+	protected void recordCommand(final String command, final long nanos) {
+		Histogram histogram = command == null ? null : latencies.get(command);
+		if (histogram == null) {
+			histogram = latencies.get(OTHER);
+		}
+		histogram.record(nanos);
+	}
+
+	/**
+	 * Counts a session as connected.
+	 */
+	protected void sessionOpened() {
+		activeSessions.increment();
+		totalSessions.increment();
+	}
+
+	/**
+	 * Counts a session as gone.
+	 */
+	protected void sessionClosed() {
+		activeSessions.decrement();
+	}
+
+	/**
+	 * @param bytes
+	 *            file data received from a client
+	 */
+	protected void received(final long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	/**
+	 * @param bytes
+	 *            file data sent to a client
+	 */
+	protected void sent(final long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	@Override
+	public long getUptimeSeconds() {
+		return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started);
+	}
+
+	@Override
+	public long getActiveSessions() {
+		return activeSessions.sum();
+	}
+
+	@Override
+	public long getTotalSessions() {
+		return totalSessions.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getCommands() {
+		long commands = 0;
+		for (final Histogram histogram : latencies.values()) {
+			commands += histogram.count();
+		}
+		return commands;
+	}
+
+	@Override
+	public double getContentCacheHitRate() {
+		final FileContentCache cache = FileContentCache.shared();
+		return rate(cache.hits(), cache.misses());
+	}
+
+	@Override
+	public long getContentCacheHits() {
+		return FileContentCache.shared().hits();
+	}
+
+	@Override
+	public long getContentCacheMisses() {
+		return FileContentCache.shared().misses();
+	}
+
+	@Override
+	public long getContentCacheEvictions() {
+		return FileContentCache.shared().evictions();
+	}
+
+	@Override
+	public long getContentCacheBytes() {
+		return FileContentCache.shared().used();
+	}
+
+	@Override
+	public double getChecksumCacheHitRate() {
+		final ChecksumCache cache = ChecksumCache.shared();
+		return rate(cache.hits(), cache.misses());
+	}
+
+	@Override
+	public double getMeanCommitBatch() {
+		return GroupCommit.shared().meanBatch();
+	}
+
+	@Override
+	public long getRejectedSessions() {
+		return AdmissionControl.shared().rejectedSessions();
+	}
+
+	@Override
+	public long getRejectedTransfers() {
+		return AdmissionControl.shared().rejectedTransfers();
+	}
+
+	@Override
+	public String[] getCommandLatencies() {
+		final List<String> lines = new ArrayList<>();
+		for (final String command : COMMANDS) {
+			if (latencies.get(command).count() > 0) {
+				lines.add(latencyLine(command, latencies.get(command)));
+			}
+		}
+		if (latencies.get(OTHER).count() > 0) {
+			lines.add(latencyLine(OTHER, latencies.get(OTHER)));
+		}
+		return lines.toArray(new String[0]);
+	}
+
+	@Override
+	public String report() {
+		final double seconds = Math.max(1e-9,
+				(System.nanoTime() - started) / 1e9);
+		final StringBuilder report = new StringBuilder();
+		report.append(String.format(Locale.ROOT,
+				"uptime %d s, sessions %d active, %d total%n", getUptimeSeconds(),
+				getActiveSessions(), getTotalSessions()));
+		report.append(String.format(Locale.ROOT,
+				"bytes in %d (%.0f B/s), out %d (%.0f B/s)%n", getBytesIn(),
+				getBytesIn() / seconds, getBytesOut(), getBytesOut() / seconds));
+		report.append(String.format(Locale.ROOT,
+				"content cache hits %d, misses %d, evictions %d, %d bytes held%n",
+				getContentCacheHits(), getContentCacheMisses(),
+				getContentCacheEvictions(), getContentCacheBytes()));
+		report.append(String.format(Locale.ROOT,
+				"content cache hit rate %.3f, checksum cache hit rate %.3f%n",
+				getContentCacheHitRate(), getChecksumCacheHitRate()));
+		report.append(String.format(Locale.ROOT,
+				"uploads per group commit %.1f, busy sessions %d, busy transfers %d%n",
+				getMeanCommitBatch(), getRejectedSessions(), getRejectedTransfers()));
+		report.append(latencyHeader()).append(System.lineSeparator());
+		for (final String line : getCommandLatencies()) {
+			report.append(line).append(System.lineSeparator());
+		}
+		return report.toString();
+	}
+
+	/**
+	 * @return the column headings above latency lines
+	 */
+	protected static String latencyHeader() {
+		return String.format(Locale.ROOT, "%-8s %10s %10s %10s %10s %10s %10s",
+				"command", "count", "mean us", "p50 us", "p90 us", "p99 us", "max us");
+	}
+
+	/**
+	 * Formats the latencies of one command, e.g. for the client's own
+	 * commands as well as the server's.
+	 *
+	 * @param command
+	 *            the command's name
+	 * @param histogram
+	 *            its latencies
+	 * @return one report line
+	 */
+	protected static String latencyLine(final String command,
+			final Histogram histogram) {
+		return String.format(Locale.ROOT, "%-8s %10d %10.0f %10d %10d %10d %10d",
+				command, histogram.count(), histogram.mean() / 1e3,
+				histogram.percentile(50) / 1000, histogram.percentile(90) / 1000,
+				histogram.percentile(99) / 1000, histogram.max() / 1000);
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * @return hits as a fraction of lookups, 0 if there were none
+	 */
+	private static double rate(final long hits, final long misses) {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Management interface of {@link ServerMetrics}, registered with the
+ * platform MBean server as secftp:type=ServerMetrics.
+ */
+public interface ServerMetricsMXBean {
+
+	/**
+	 * @return seconds since the metrics were created
+	 */
+	long getUptimeSeconds();
+
+	/**
+	 * @return sessions currently connected
+	 */
+	long getActiveSessions();
+
+	/**
+	 * @return sessions accepted since startup
+	 */
+	long getTotalSessions();
+
+	/**
+	 * @return file data bytes received from clients
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return file data bytes sent to clients
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return commands processed since startup
+	 */
+	long getCommands();
+
+	/**
+	 * @return fraction of cacheable downloads served from memory
+	 */
+	double getContentCacheHitRate();
+
+	/**
+	 * @return downloads served from the content cache
+	 */
+	long getContentCacheHits();
+
+	/**
+	 * @return downloads of cacheable files that had to read disk
+	 */
+	long getContentCacheMisses();
+
+	/**
+	 * @return files dropped from the content cache to stay within capacity
+	 */
+	long getContentCacheEvictions();
+
+	/**
+	 * @return bytes of file content the content cache holds
+	 */
+	long getContentCacheBytes();
+
+	/**
+	 * @return fraction of whole-file sends whose checksum was known
+	 */
+	double getChecksumCacheHitRate();
+
+	/**
+	 * @return mean uploads forced to disk per group commit
+	 */
+	double getMeanCommitBatch();
+
+	/**
+	 * @return sessions turned away by admission control
+	 */
+	long getRejectedSessions();
+
+	/**
+	 * @return transfers turned away by admission control
+	 */
+	long getRejectedTransfers();
+
+	/**
+	 * @return one line per command: count, then mean, median, 90th and 99th
+	 *         percentile and maximum latency in microseconds
+	 */
+	String[] getCommandLatencies();
+
+	/**
+	 * @return the report the stats command sends
+	 */
+	String report();
+
+}
@@ -1,7 +1,17 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Models an FTP session with a client. Implements methods declared by
@@ -12,7 +22,54 @@ import java.util.StringTokenizer;
  * @since Jan 23, 2007
  */
 public class ServerSession extends FTPApplication {
-	private static final String PROMPT = "secFTP>";
+	protected static final String PROMPT = "secFTP>";
+	private static final byte[] PROMPT_BYTES = PROMPT
+			.getBytes(StandardCharsets.UTF_8);
+
+	/* Optional features this server grants when a client asks for them */
+	private static final Set<String> SUPPORTED_FEATURES = new HashSet<>(
+			Arrays.asList(RANGES, DEFLATE, PIPELINE, DELTA, CHUNKS, CHECKSUM,
+					METRICS));
+
+	/* Every command, with get also taking the version a resume is based on */
+	private static final CommandTable<Command> COMMANDS = defaultCommands()
+			.register(GET, (session, args) -> {
+				final String file = args.hasMoreTokens() ? args.nextToken() : null;
+				final long offset = nextLong(session, args, 0);
+				final long length = nextLong(session, args, ERROR);
+				((ServerSession) session).handleGet(file, offset, length,
+						args.hasMoreTokens() ? args.nextToken() : null);
+			});
+
+	/* Numbers sessions for their log context */
+	private static final AtomicLong SESSIONS = new AtomicLong();
+
+	/* Whether this session may agree to binary framing when asked */
+	private final boolean allowBinary;
+
+	/* Cached listing of the file base, shared with other sessions */
+	private final DirectoryListing listing;
+
+	/* Hot-file contents, shared with other sessions */
+	private final FileContentCache contentCache = FileContentCache.shared();
+
+	/* Checksums of files sent whole, shared with other sessions */
+	private final ChecksumCache checksums = ChecksumCache.shared();
+
+	/* Counters and latency histograms, shared with other sessions */
+	private final ServerMetrics metrics = ServerMetrics.shared();
+
+	/* Forces completed uploads to disk in batches with other sessions' */
+	private final GroupCommit commits = GroupCommit.shared();
+
+	/* Limits on transfers running at once, shared with other sessions */
+	private final AdmissionControl admission = AdmissionControl.shared();
+
+	/* Deduplicating storage of the file base, null if files are kept whole */
+	private final ChunkStore store;
+
+	/* Messages tagged with this session's number and client address */
+	private final Log log;
 
 	// ----------------------------------------------------------------------
 	// CONSTRUCTOR
@@ -28,8 +85,29 @@ public class ServerSession extends FTPApplication {
 	 */
 	//protected added
 	protected ServerSession(final Socket socket, final String filePath) throws IOException {
+		this(socket, filePath, true);
+	}
+
+	/**
+	 * Sets up I/O objects associated with the socket.
+	 * 
+	 * @param socket
+	 *            Network endpoint connected to a client.
+	 * @param filePath
+	 *            Path to the file base.
+	 * @param allowBinary
+	 *            false to keep the session on the legacy text framing.
+	 */
+	protected ServerSession(final Socket socket, final String filePath,
+			final boolean allowBinary) throws IOException {
 		super(filePath);
-		System.out.printf("Serving files out of %s. %n", fileBase);
+		this.allowBinary = allowBinary;
+		this.listing = DirectoryListing.forDirectory(fileBase);
+		this.store = ChunkStore.forDirectory(fileBase);
+		this.shaper = BandwidthShaper.forSession();
+		this.log = Log.forContext("session " + SESSIONS.incrementAndGet() + " "
+				+ (socket == null ? "unconnected" : socket.getRemoteSocketAddress()));
+		log.debug("Serving files out of %s.", fileBase);
 		this.socket = socket;
 		setUpIO();
 	}
@@ -39,87 +117,533 @@ public class ServerSession extends FTPApplication {
 	// ----------------------------------------------------------------------
 
 	/**
-	 * Receives the name, length, and data of the file to upload. The data
-	 * received is written to a file and a status message is sent.
+	 * Receives the name, length, and data of the file to upload. The data is
+	 * written to a partial file that is renamed over the target once complete,
+	 * so an interrupted upload can be resumed from where it stopped, and a
+	 * status message is sent. When the server is too busy the session is
+	 * closed after the refusal instead of reading the data.
 	 * 
 	 * @param filename
 	 *            the name of the file to upload.
+	 * @param offset
+	 *            position to resume at; the partial file must hold as much
 	 */
-	protected void handlePut(final String filename) {
+	protected void handlePut(final String filename, final long offset) {
 		boolean success = false;
 
+		if (!admission.admitTransfer()) {
+			// hang up rather than take in data only to throw it away; the
+			// client sees the session drop and can retry on a new one
+			log.warn("Server busy, refusing %s", filename);
+			sendMessage(SERVER_BUSY);
+			handleExit();
+			return;
+		}
 		try {
-			System.out.printf("Receiving %s%n", filename);
-
-			// GET DATA
-			byte[] data = receiveData();
-
-			// SAVE DATA
-			if (data != null) {
-				storeFile(data, filename);
-				success = true;
+			if (Log.enabled(Log.Level.DEBUG)) {
+				log.debug("Receiving %s from %d", filename, offset);
 			}
 
+			// GET & SAVE DATA, one chunk at a time
+			final String partial = filename + PARTIAL_SUFFIX;
+			metrics.received(receiveFile(partial, offset));
+			commitUpload(partial, filename);
+			success = true;
+
 		} catch (IOException ioe) {
-			System.err.printf("I/O error receiving file: %s%n", ioe);
+			log.warn("I/O error receiving file: %s", ioe);
 		} catch (NumberFormatException nfe) {
-			System.err.printf("Invalid length specified: %s%n", nfe);
+			log.warn("Invalid length specified: %s", nfe);
+		} finally {
+			admission.transferDone();
 		}
 
 		// SEND REPLY
-		System.out.printf("Sending reply ... ");
-		String message = success ? "PUT OK" : "PUT FAILED";
+		String message = success ? PUT_OK : PUT_FAILED;
 		sendMessage(message);
-		System.out.printf("done.%n");
+		if (Log.enabled(Log.Level.DEBUG)) {
+			log.debug("Replied %s for %s", message, filename);
+		}
+	}
+
+	/**
+	 * Sends the signature of the current copy of a file, rebuilds the new
+	 * copy next to it from the client's delta, and swaps it in once its
+	 * checksum matches. A status message is sent as for a put; when the
+	 * server is too busy the refusal is sent in place of the signature.
+	 * 
+	 * @param filename
+	 *            the name of the file to upload.
+	 */
+	protected void handleDput(final String filename) {
+		boolean success = false;
+		final File basis = new File(getFilePath(filename));
+		final int blockSize = FileDelta.blockSize(basis.length());
+
+		if (!admission.admitTransfer()) {
+			// the client sends nothing until it has the signature
+			log.warn("Server busy, refusing delta of %s", filename);
+			sendData(SERVER_BUSY.getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		try {
+			sendData(FileDelta.signature(basis, blockSize));
+			if (Log.enabled(Log.Level.DEBUG)) {
+				log.debug("Sent signature of %s", filename);
+			}
+
+			final String rebuilt = filename + DELTA_SUFFIX;
+			final long length = FileDelta.rebuild(() -> {
+				final byte[] frame = receiveData();
+				metrics.received(frame.length);
+				return frame;
+			}, basis, new File(getFilePath(rebuilt)), blockSize);
+			commitUpload(rebuilt, filename);
+			if (Log.enabled(Log.Level.DEBUG)) {
+				log.debug("Rebuilt %s (%d bytes)", filename, length);
+			}
+			success = true;
+		} catch (IOException ioe) {
+			log.warn("I/O error rebuilding file: %s", ioe);
+		} finally {
+			admission.transferDone();
+		}
+
+		// SEND REPLY
+		sendMessage(success ? PUT_OK : PUT_FAILED);
 	}
 
 	/**
-	 * Determines if the specified file exists, and sends the file's length and
-	 * data.
+	 * Receives the chunk list of a file, asks for the chunks the store does
+	 * not hold, stores them, and points the name at the list. A status message
+	 * is sent as for a put. Without a chunk store, or when the server is too
+	 * busy, no chunks are asked for and the upload is refused.
+	 * 
+	 * @param filename
+	 *            the name of the file to upload.
+	 */
+	protected void handleCput(final String filename) {
+		boolean success = false;
+		final List<ChunkStore.Chunk> held = new ArrayList<>();
+
+		if (store == null) {
+			// only a client that ignored the features granted gets here
+			log.warn("No chunk store, refusing chunks of %s", filename);
+			refuseChunks();
+			sendMessage(PUT_FAILED);
+			return;
+		}
+		if (!admission.admitTransfer()) {
+			log.warn("Server busy, refusing chunks of %s", filename);
+			refuseChunks();
+			sendMessage(SERVER_BUSY);
+			return;
+		}
+		try {
+			List<ChunkStore.Chunk> chunks = null;
+			try {
+				chunks = ChunkStore.parse(receiveData());
+			} catch (IOException ioe) {
+				log.warn("Invalid chunk list: %s", ioe);
+			}
+
+			// ask for each missing chunk once; repeats are referenced after
+			final List<Integer> wanted = new ArrayList<>();
+			final List<ChunkStore.Chunk> repeated = new ArrayList<>();
+			final Set<String> requested = new HashSet<>();
+			for (int i = 0; chunks != null && i < chunks.size(); i++) {
+				final ChunkStore.Chunk chunk = chunks.get(i);
+				if (requested.contains(chunk.name())) {
+					repeated.add(chunk);
+				} else if (store.acquire(chunk)) {
+					held.add(chunk);
+				} else {
+					requested.add(chunk.name());
+					wanted.add(i);
+				}
+			}
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeInt(chunks == null ? ERROR : wanted.size());
+				for (final int index : wanted) {
+					out.writeInt(index);
+				}
+			}
+			if (Log.enabled(Log.Level.DEBUG)) {
+				log.debug("Receiving %d of %d chunks of %s", wanted.size(),
+						chunks == null ? 0 : chunks.size(), filename);
+			}
+			sendData(bytes.toByteArray());
+
+			// read every chunk asked for, even after one fails to store
+			IOException failure = null;
+			for (final int index : wanted) {
+				final byte[] data = receiveData();
+				metrics.received(data.length);
+				if (failure == null) {
+					try {
+						store.add(chunks.get(index), data);
+						held.add(chunks.get(index));
+					} catch (IOException ioe) {
+						failure = ioe;
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			for (final ChunkStore.Chunk chunk : repeated) {
+				if (!store.acquire(chunk)) {
+					throw new IOException("Chunk " + chunk.name() + " went missing");
+				}
+				held.add(chunk);
+			}
+
+			if (chunks != null) {
+				final File target = new File(getFilePath(filename));
+				store.commit(chunks, target);
+				held.clear();
+				contentCache.invalidate(target);
+				checksums.invalidate(target);
+				listing.refresh(filename);
+				success = true;
+			}
+		} catch (IOException ioe) {
+			log.warn("I/O error receiving chunks: %s", ioe);
+		} finally {
+			for (final ChunkStore.Chunk chunk : held) {
+				store.release(chunk);
+			}
+			admission.transferDone();
+		}
+
+		// SEND REPLY
+		sendMessage(success ? PUT_OK : PUT_FAILED);
+	}
+
+	/**
+	 * Determines if the specified file exists, and sends the file's length
+	 * followed by the requested range of its data. An offset beyond the end of
+	 * the file is answered with the whole file, which the client recognises
+	 * by the range length.
 	 * 
 	 * @param filename
 	 *            name of the file to transmit.
+	 * @param offset
+	 *            position of the first byte wanted
+	 * @param length
+	 *            number of bytes wanted, ERROR for the rest of the file
 	 */
-	protected void handleGet(final String filename) {
-		System.out.printf("Preparing to send %s ... %n", filename);
+	protected void handleGet(final String filename, final long offset,
+			final long length) {
+		handleGet(filename, offset, length, null);
+	}
+
+	/**
+	 * Sends a file like {@link #handleGet(String, long, long)}, checking a
+	 * resumed download against the file's version. If the client's partial
+	 * copy was taken from another version, the whole file is sent instead of
+	 * the rest, and the file's current version follows its length.
+	 * 
+	 * @param filename
+	 *            name of the file to transmit.
+	 * @param offset
+	 *            position of the first byte wanted
+	 * @param length
+	 *            number of bytes wanted, ERROR for the rest of the file
+	 * @param version
+	 *            version the client's bytes before offset came from, any
+	 *            other token to just learn the version, or null for neither
+	 */
+	protected void handleGet(final String filename, final long offset,
+			final long length, final String version) {
+		if (Log.enabled(Log.Level.DEBUG)) {
+			log.debug("Preparing to send %s", filename);
+		}
 
 		// CHECK EXISTANCE OF FILE, AND SEND LENGTH
 		File file = new File(getFilePath(filename));
-		if (!file.exists()) {
-			System.err.printf("%s does not exist.%n", file);
-			sendMessage(String.valueOf(ERROR));
+		if (!file.isFile()) {
+			log.warn("%s does not exist.", file);
+			sendNumber(ERROR);
+		} else if (length != 0 && !admission.admitTransfer()) {
+			// a size probe moves no data, so only real transfers wait
+			log.warn("Server busy, not sending %s", file);
+			sendNumber(BUSY);
 		} else {
-			// send length
-			System.out.printf("Sending length ... ");
-			sendMessage(String.valueOf(file.length()));
-			System.out.printf("done.%n");
+			try {
+				ChunkStore.Manifest manifest = null;
+				if (store != null) {
+					try {
+						// pins the chunks until the manifest is closed
+						manifest = store.open(file);
+					} catch (IOException ioe) {
+						log.warn("Unreadable manifest %s: %s", file, ioe);
+						sendNumber(ERROR);
+						return;
+					}
+				}
+				final long size = manifest != null ? manifest.length : file.length();
+				final String current = version(file, size);
+				final boolean stale = version != null && !version.equals(current);
+				final long start = offset < 0 || offset > size || stale ? 0
+						: offset;
+				final long count = length < 0 || length > size - start ? size - start
+						: length;
 
-			// send data
-			byte[] data = readFile(file);
-			sendData(data);
+				// popular files come straight from memory
+				final ByteBuffer cached = manifest == null && start == 0 && count == size
+						? contentCache.get(file) : null;
+
+				// send length
+				sendNumber(cached != null ? cached.remaining() : size);
+				if (version != null) {
+					sendMessage(current);
+				}
+
+				// stream data
+				try {
+					if (cached != null) {
+						sendBuffer(cached);
+					} else if (manifest != null) {
+						try (ChunkStore.Manifest source = manifest) {
+							sendSource(source, start, count);
+						}
+					} else {
+						sendFile(file, start, count);
+					}
+					metrics.sent(count);
+				} catch (IOException ioe) {
+					// the client is mid-read of a stream we can't finish
+					log.warn("I/O error sending file: %s", ioe);
+					handleExit();
+				}
+			} finally {
+				if (length != 0) {
+					admission.transferDone();
+				}
+			}
 		}
 	}
 
+	/**
+	 * Sends the size of the partial file an interrupted upload left behind,
+	 * 0 if there is none.
+	 * 
+	 * @param filename
+	 *            name of the file being uploaded
+	 */
+	protected void handleRest(final String filename) {
+		final File partial = new File(getFilePath(filename + PARTIAL_SUFFIX));
+		sendNumber(partial.isFile() ? partial.length() : 0);
+	}
+
+	/**
+	 * Reads a cput's chunk list and answers that no chunks are wanted, which
+	 * ends the upload before any are sent. The caller sends the reply.
+	 */
+	private void refuseChunks() {
+		try {
+			receiveData();
+		} catch (IOException ioe) {
+			log.warn("Invalid chunk list: %s", ioe);
+		}
+		sendData(ByteBuffer.allocate(Integer.BYTES).putInt(ERROR).array());
+	}
+
+	/**
+	 * Commits a completed partial upload over its target, or moves it into
+	 * the chunk store under that name, then refreshes the listing and drops
+	 * any cached copy or checksum of the file it replaced.
+	 * 
+	 * @param partial
+	 *            name of the completed partial file
+	 * @param filename
+	 *            name the upload should appear under
+	 * @throws IOException
+	 */
+	private void commitUpload(final String partial, final String filename)
+			throws IOException {
+		final Path source = new File(getFilePath(partial)).toPath();
+		final Path target = new File(getFilePath(filename)).toPath();
+		if (store != null) {
+			store.ingest(source.toFile(), target.toFile());
+		} else {
+			commits.commit(source, target);
+		}
+		contentCache.invalidate(target.toFile());
+		checksums.invalidate(target.toFile());
+		listing.refresh(partial);
+		listing.refresh(filename);
+	}
+
 	/**
 	 * Determines the available files, then sends the number, followed by names
 	 * of them.
 	 */
 	protected void handleLs() {
-		System.out.printf("Listing available files.%n");
+		if (Log.enabled(Log.Level.DEBUG)) {
+			log.debug("Listing available files.");
+		}
 
-		File[] availableFiles = new File(fileBase).listFiles();
+		DirectoryListing.Entry[] availableFiles = listing.entries();
 
 		if (availableFiles == null) {
-			System.err.printf("%s is not a directory.%n", fileBase);
-			sendMessage(String.valueOf(ERROR));
+			log.error("%s is not a directory.", fileBase);
+			sendNumber(ERROR);
 		} else {
-			sendMessage(String.valueOf(availableFiles.length));
+			sendNumber(availableFiles.length);
 
 			/* send each file name */
-			for (File file : availableFiles) {
-				sendMessage(file.getName());
+			for (DirectoryListing.Entry file : availableFiles) {
+				sendMessage(file.name);
+			}
+		}
+	}
+
+	/**
+	 * Sends one page of the listing, with metadata, in a single frame.
+	 * 
+	 * @param args
+	 *            optional glob (default all), offset (default 0) and limit
+	 */
+	protected void handleList(final CommandLine args) {
+		String pattern = "*";
+		int offset = 0;
+		int limit = DirectoryListing.DEFAULT_PAGE;
+		try {
+			if (args.hasMoreTokens()) {
+				pattern = args.nextToken();
+			}
+			if (args.hasMoreTokens()) {
+				offset = (int) Math.max(0, args.nextLong());
 			}
+			if (args.hasMoreTokens()) {
+				limit = (int) args.nextLong();
+			}
+		} catch (NumberFormatException nfe) {
+			log.warn("Invalid page bounds: %s", nfe);
 		}
+
+		if (Log.enabled(Log.Level.DEBUG)) {
+			log.debug("Listing %s from %d.", pattern, offset);
+		}
+		sendData(listing.page(pattern, offset, limit));
+	}
+
+	/**
+	 * Answers a framing negotiation. The reply is always sent in the framing
+	 * the request arrived in; binary framing starts with the next message.
+	 * Requested features this server supports are granted and echoed back.
+	 * 
+	 * @param args
+	 *            client protocol version, requested framing and features
+	 */
+	protected void handleHello(final CommandLine args) {
+		int version = 0;
+		boolean binaryRequested = false;
+		try {
+			version = args.hasMoreTokens() ? (int) args.nextLong() : 0;
+		} catch (NumberFormatException nfe) {
+			log.warn("Invalid protocol version: %s", nfe);
+		}
+		final StringBuilder granted = new StringBuilder();
+		while (args.hasMoreTokens()) {
+			final String token = args.nextToken().toLowerCase();
+			if (token.equals(BINARY)) {
+				binaryRequested = true;
+			} else if (SUPPORTED_FEATURES.contains(token)
+					&& (compression || !token.equals(DEFLATE))
+					&& (store != null ? !token.equals(DELTA) : !token.equals(CHUNKS))
+					&& features.add(token)) {
+				granted.append(' ').append(token);
+			}
+		}
+
+		final boolean binary = allowBinary && binaryRequested
+				&& version >= PROTOCOL_VERSION;
+		sendMessage(HELLO_REPLY + " " + PROTOCOL_VERSION + " "
+				+ (binary ? BINARY : TEXT) + granted);
+		binaryFraming = binary;
+		log.info("Using %s framing with%s.", binary ? BINARY : TEXT,
+				granted.length() > 0 ? granted.toString() : " no features");
+	}
+
+	/**
+	 * Looks up the checksum recorded when the file was last sent whole.
+	 * 
+	 * @param file
+	 *            the file about to be sent
+	 * @return its CRC32C, or null
+	 */
+	protected Integer knownChecksum(final File file) {
+		return checksums.get(file);
+	}
+
+	/**
+	 * Records a file's checksum for later downloads.
+	 * 
+	 * @param file
+	 *            the file just sent
+	 * @param modified
+	 *            its modification time when the send began
+	 * @param size
+	 *            its length when the send began
+	 * @param checksum
+	 *            its CRC32C
+	 */
+	protected void checksumComputed(final File file, final long modified,
+			final long size, final int checksum) {
+		checksums.put(file, modified, size, checksum);
+	}
+
+	/**
+	 * Logs transfer progress, which is only written at debug level.
+	 */
+	protected void chatter(final String format, final Object... args) {
+		log.debug(format, args);
+	}
+
+	/**
+	 * Progress is wanted only while debug messages are logged.
+	 */
+	protected boolean chatty() {
+		return Log.enabled(Log.Level.DEBUG);
+	}
+
+	/**
+	 * Logs a problem with this session as a warning.
+	 */
+	protected void warning(final String format, final Object... args) {
+		log.warn(format, args);
+	}
+
+	/**
+	 * Returns the shared commands with a get that checks versions.
+	 */
+	protected CommandTable<Command> commands() {
+		return COMMANDS;
+	}
+
+	/**
+	 * Names the version of a file by its length and modification time, like
+	 * an HTTP entity tag. Replacing the file changes its version.
+	 * 
+	 * @param file
+	 *            the file, or its manifest in the chunk store
+	 * @param size
+	 *            length of the file's content
+	 * @return the version
+	 */
+	private static String version(final File file, final long size) {
+		return Long.toHexString(size) + "-" + Long.toHexString(file.lastModified());
+	}
+
+	/**
+	 * Sends the server's metrics as one message.
+	 */
+	protected void handleStats() {
+		sendMessage(metrics.report());
 	}
 
 	/**
@@ -148,26 +672,47 @@ public class ServerSession extends FTPApplication {
 	 */
 	// protected added here
 	protected void serveClient() {
-		if (lineIn == null || lineOut == null) {
-			System.err.printf("I/O has not been set up.%n");
+		if (dataIn == null || dataOut == null) {
+			log.error("I/O has not been set up.");
 		} else {
 			try {
-				String clientRequest;
-				StringTokenizer args;
+				final CommandLine args = new CommandLine();
+				long tag = 0;
+				metrics.sessionOpened();
+				log.info("Session opened.");
 
 				// control loop, receiving client requests
 				while (!exitRecieved) {
+					// pipelined clients prompt for themselves and may send
+					// ahead, so each reply is tagged with its command's number
+					final boolean pipelined = features.contains(PIPELINE);
+
 					// PRESENT PROMPT
-					sendMessage(PROMPT);
+					if (!pipelined) {
+						sendData(PROMPT_BYTES);
+					}
 
 					// ACCEPT & PROCESS INPUT
-					clientRequest = receiveMessage();
-					args = new StringTokenizer(clientRequest);
-					processCommand(args);
+					receiveCommand(args);
+					if (pipelined) {
+						sendNumber(++tag);
+					}
+					final long started = System.nanoTime();
+					final String command = processCommand(args);
+					metrics.recordCommand(command, System.nanoTime() - started);
 				}
 
 			} catch (IOException ioe) {
-				System.err.printf("IO Error receiving client input: %s%n", ioe);
+				log.warn("IO Error receiving client input: %s", ioe);
+			} catch (NumberFormatException nfe) {
+				log.warn("Malformed frame from client: %s", nfe);
+			} finally {
+				metrics.sessionClosed();
+				log.info("Session closed.");
+				// the client may have dropped without saying exit
+				if (!exitRecieved) {
+					terminate();
+				}
 			}
 		}
 	}
@@ -0,0 +1,37 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line, always adding the GC
+ * profiler (allocation rate per operation, collection counts and times) and
+ * writing JSON results that can be compared between runs.
+ */
+public final class BenchmarkMain {
+	/* Results file used unless -rff names another */
+	private static final String RESULTS = "jmh-result.json";
+
+	private BenchmarkMain() {
+	}
+
+	public static void main(final String[] args)
+			throws CommandLineOptionException, RunnerException {
+		final CommandLineOptions options = new CommandLineOptions(args);
+		final OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(options).addProfiler(GCProfiler.class);
+		if (!options.getResultFormat().hasValue()) {
+			builder.resultFormat(ResultFormatType.JSON);
+		}
+		if (!options.getResult().hasValue()) {
+			builder.result(RESULTS);
+		}
+		new Runner(builder.build()).run();
+	}
+
+}
@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Commands as the server runs them: each command line is parsed and
+ * dispatched by processCommand, and the client reads the reply the way its
+ * own handlers would.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandBenchmark {
+	@Param({ Link.LOOPBACK, Link.PIPE })
+	public String transport;
+
+	/* Files in the server's file base, so ls has something to list */
+	@Param({ "100" })
+	public int files;
+
+	/* Size of the file fetched by get */
+	@Param({ "1024", "1048576" })
+	public long size;
+
+	private Link link;
+
+	@Setup(Level.Trial)
+	public void connect() throws IOException {
+		link = Link.open(transport, true, "");
+		for (int i = 0; i < files; i++) {
+			Link.randomFile(link.serverBase, "file" + i + ".bin", size);
+		}
+		link.serve(Endpoint::serveCommand);
+	}
+
+	@TearDown(Level.Trial)
+	public void disconnect() throws IOException {
+		link.close();
+	}
+
+	@Benchmark
+	public int ls() throws IOException {
+		link.client.sendMessage("ls");
+		final int count = Integer.parseInt(link.client.receiveMessage());
+		for (int i = 0; i < count; i++) {
+			link.client.receiveMessage();
+		}
+		return count;
+	}
+
+	/* A small request whose reply is a single number */
+	@Benchmark
+	public long rest() throws IOException {
+		link.client.sendMessage("rest file0.bin");
+		return Long.parseLong(link.client.receiveMessage());
+	}
+
+	@Benchmark
+	public long get() throws IOException {
+		link.client.sendMessage("get file0.bin");
+		link.client.receiveMessage();
+		return link.client.discardFile();
+	}
+
+}
@@ -0,0 +1,302 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+
+/**
+ * One end of a secFTP connection, driven from outside the protocol's own
+ * control loops. The application classes live in the default package, which
+ * no named package can refer to, so their protected API is reached through
+ * method handles looked up once per run.
+ */
+final class Endpoint {
+	private static final Class<?> APPLICATION = type("FTPApplication");
+	private static final Class<?> CLIENT = type("FTPClient");
+	private static final Class<?> SERVER = type("ServerSession");
+	private static final Class<?> COMMAND_LINE = type("CommandLine");
+
+	private static final Field SOCKET = field("socket");
+	private static final Field DATA_IN = field("dataIn");
+	private static final Field DATA_OUT = field("dataOut");
+	private static final Field BINARY_FRAMING = field("binaryFraming");
+	private static final Field FEATURES = field("features");
+	private static final Field QUIET = field("quiet");
+
+	private static final MethodHandle SET_UP_IO = method("setUpIO");
+	private static final MethodHandle TERMINATE = method("terminate");
+	private static final MethodHandle SEND_DATA = method("sendData", byte[].class);
+	private static final MethodHandle RECEIVE_DATA = method("receiveData");
+	private static final MethodHandle SEND_MESSAGE = method("sendMessage", String.class);
+	private static final MethodHandle RECEIVE_MESSAGE = method("receiveMessage");
+	private static final MethodHandle SEND_FILE = method("sendFile", File.class);
+	private static final MethodHandle RECEIVE_FILE = method("receiveFile", String.class);
+	private static final MethodHandle READ_LENGTH = method("readLength");
+	private static final MethodHandle STORE_RANGE = method("storeRange",
+			FileChannel.class, long.class, long.class);
+	private static final MethodHandle RECEIVE_COMMAND = method("receiveCommand",
+			COMMAND_LINE);
+	private static final MethodHandle PROCESS_COMMAND = method("processCommand",
+			COMMAND_LINE);
+
+	private final Object application;
+
+	/* Reused for every command this end receives, as a session's is */
+	private final Object commandLine = newInstance(COMMAND_LINE);
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	private Endpoint(final Object application) {
+		this.application = application;
+		set(QUIET, true);
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * @return an unconnected client working out of the directory
+	 */
+	static Endpoint client(final File base) {
+		try {
+			final Constructor<?> constructor = CLIENT.getDeclaredConstructor(int.class,
+					InetAddress.class, String.class);
+			constructor.setAccessible(true);
+			return new Endpoint(constructor.newInstance(0,
+					InetAddress.getLoopbackAddress(), base.getPath()));
+		} catch (ReflectiveOperationException roe) {
+			throw new IllegalStateException(roe);
+		}
+	}
+
+	/**
+	 * @return an unconnected server session serving the directory
+	 */
+	static Endpoint server(final File base) {
+		try {
+			final Constructor<?> constructor = SERVER.getDeclaredConstructor(
+					Socket.class, String.class, boolean.class);
+			constructor.setAccessible(true);
+			return new Endpoint(constructor.newInstance(null, base.getPath(), true));
+		} catch (ReflectiveOperationException roe) {
+			throw new IllegalStateException(roe);
+		}
+	}
+
+	/**
+	 * Connects this end to a socket, as a session would.
+	 */
+	void attach(final Socket socket) throws IOException {
+		set(SOCKET, socket);
+		try {
+			SET_UP_IO.invokeExact(application);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	/**
+	 * Connects this end to in-memory streams. The socket stays unconnected, so
+	 * file sends take the copying paths.
+	 */
+	void attach(final InputStream in, final OutputStream out) {
+		set(SOCKET, new Socket());
+		set(DATA_IN, new DataInputStream(new BufferedInputStream(in)));
+		set(DATA_OUT, new DataOutputStream(new BufferedOutputStream(out)));
+	}
+
+	/**
+	 * Switches framing and grants features, as a hello exchange would.
+	 */
+	@SuppressWarnings("unchecked")
+	void negotiate(final boolean binary, final Set<String> features) {
+		set(BINARY_FRAMING, binary);
+		try {
+			((Set<String>) FEATURES.get(application)).addAll(features);
+		} catch (IllegalAccessException iae) {
+			throw new IllegalStateException(iae);
+		}
+	}
+
+	void sendData(final byte[] bytes) throws IOException {
+		try {
+			SEND_DATA.invokeExact(application, bytes);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	byte[] receiveData() throws IOException {
+		try {
+			return (byte[]) RECEIVE_DATA.invokeExact(application);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	void sendMessage(final String message) throws IOException {
+		try {
+			SEND_MESSAGE.invokeExact(application, message);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	String receiveMessage() throws IOException {
+		try {
+			return (String) RECEIVE_MESSAGE.invokeExact(application);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	void sendFile(final File file) throws IOException {
+		try {
+			SEND_FILE.invokeExact(application, file);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	long receiveFile(final String filename) throws IOException {
+		try {
+			return (long) RECEIVE_FILE.invokeExact(application, filename);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	/**
+	 * Reads a stream of file data and throws it away.
+	 *
+	 * @return number of bytes read
+	 */
+	long discardFile() throws IOException {
+		try {
+			final long length = (long) READ_LENGTH.invokeExact(application);
+			// without a target the bytes are only drained
+			final IOException ignored = (IOException) STORE_RANGE.invokeExact(
+					application, (FileChannel) null, 0L, length);
+			return length;
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	/**
+	 * Receives one command and runs it, as a session's control loop does.
+	 */
+	void serveCommand() throws IOException {
+		try {
+			final Object line = (Object) RECEIVE_COMMAND.invokeExact(application,
+					commandLine);
+			final String command = (String) PROCESS_COMMAND.invokeExact(
+					application, line);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	void close() {
+		try {
+			TERMINATE.invokeExact(application);
+		} catch (Throwable t) {
+			// terminate reports its own errors
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * @return the exception to throw for a failed handle invocation
+	 */
+	private static IOException rethrow(final Throwable t) {
+		if (t instanceof IOException) {
+			return (IOException) t;
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		}
+		throw new IllegalStateException(t);
+	}
+
+	private void set(final Field field, final Object value) {
+		try {
+			field.set(application, value);
+		} catch (IllegalAccessException iae) {
+			throw new IllegalStateException(iae);
+		}
+	}
+
+	private static Class<?> type(final String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException cnfe) {
+			throw new ExceptionInInitializerError(cnfe);
+		}
+	}
+
+	private static Object newInstance(final Class<?> type) {
+		try {
+			final Constructor<?> constructor = type.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return constructor.newInstance();
+		} catch (ReflectiveOperationException roe) {
+			throw new IllegalStateException(roe);
+		}
+	}
+
+	private static Field field(final String name) {
+		try {
+			final Field field = APPLICATION.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (NoSuchFieldException nsfe) {
+			throw new ExceptionInInitializerError(nsfe);
+		}
+	}
+
+	private static MethodHandle method(final String name, final Class<?>... parameters) {
+		try {
+			final Method method = APPLICATION.getDeclaredMethod(name, parameters);
+			method.setAccessible(true);
+			// typed on Object, as is every default-package type, so call
+			// sites can use invokeExact
+			MethodHandle handle = MethodHandles.lookup().unreflect(method);
+			handle = handle.asType(handle.type().changeParameterType(0, Object.class));
+			for (int i = 0; i < parameters.length; i++) {
+				if (parameters[i].getPackageName().isEmpty()) {
+					handle = handle.asType(handle.type().changeParameterType(i + 1,
+							Object.class));
+				}
+			}
+			if (method.getReturnType().getPackageName().isEmpty()) {
+				handle = handle.asType(handle.type().changeReturnType(Object.class));
+			}
+			return handle;
+		} catch (ReflectiveOperationException roe) {
+			throw new ExceptionInInitializerError(roe);
+		}
+	}
+
+}
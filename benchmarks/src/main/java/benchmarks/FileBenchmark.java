@@ -0,0 +1,68 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole-file transfers: sendFile (and readFile under it) on the client,
+ * receiveFile (and storeFile under it) into the server's file base. The
+ * server acknowledges each file so the benchmark thread waits for the bytes
+ * to be on disk, as an upload waits for PUT OK.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class FileBenchmark {
+	@Param({ Link.LOOPBACK, Link.PIPE })
+	public String transport;
+
+	@Param({ "1024", "1048576", "67108864", "1073741824" })
+	public long size;
+
+	/* Features to agree on, e.g. "deflate,crc32c"; none by default */
+	@Param({ "" })
+	public String features;
+
+	private Link link;
+	private File file;
+
+	@Setup(Level.Trial)
+	public void connect() throws IOException {
+		link = Link.open(transport, true, features);
+		file = Link.randomFile(link.clientBase, "upload.bin", size);
+		link.serve(server -> {
+			server.receiveFile("upload.bin");
+			server.sendMessage("PUT OK");
+		});
+	}
+
+	@TearDown(Level.Trial)
+	public void disconnect() throws IOException {
+		link.close();
+	}
+
+	@Benchmark
+	public String upload() throws IOException {
+		link.client.sendFile(file);
+		return link.client.receiveMessage();
+	}
+
+}
@@ -0,0 +1,61 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Echoes of whole frames through sendData and receiveData, the path taken by
+ * listings, delta signatures and uploaded chunks. Frames are held in memory
+ * whole, so sizes stop well short of the file benchmark's.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Thread)
+public class FrameBenchmark {
+	@Param({ Link.LOOPBACK, Link.PIPE })
+	public String transport;
+
+	@Param({ "1024", "65536", "1048576", "16777216" })
+	public int size;
+
+	private Link link;
+	private byte[] frame;
+
+	@Setup(Level.Trial)
+	public void connect() throws IOException {
+		frame = new byte[size];
+		new Random(size).nextBytes(frame);
+		link = Link.open(transport, true, "");
+		link.serve(server -> server.sendData(server.receiveData()));
+	}
+
+	@TearDown(Level.Trial)
+	public void disconnect() throws IOException {
+		link.close();
+	}
+
+	@Benchmark
+	public byte[] echo() throws IOException {
+		link.client.sendData(frame);
+		return link.client.receiveData();
+	}
+
+}
@@ -0,0 +1,169 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * A connected client and server session, each with a scratch file base, plus
+ * an optional peer thread that plays the server's half of every exchange so
+ * the benchmark thread can play the client's.
+ */
+final class Link {
+	/* Transports a link can run over */
+	static final String LOOPBACK = "loopback";
+	static final String PIPE = "pipe";
+
+	final Endpoint client;
+	final Endpoint server;
+	final File clientBase;
+	final File serverBase;
+
+	private final Socket[] sockets;
+	private Thread peer;
+
+	/**
+	 * One round of the server's half of an exchange.
+	 */
+	interface Step {
+		void run(Endpoint server) throws IOException;
+	}
+
+	// ----------------------------------------------------------------------
+	// CONSTRUCTOR
+	// ----------------------------------------------------------------------
+
+	private Link(final File clientBase, final File serverBase, final Socket[] sockets) {
+		this.clientBase = clientBase;
+		this.serverBase = serverBase;
+		this.client = Endpoint.client(clientBase);
+		this.server = Endpoint.server(serverBase);
+		this.sockets = sockets;
+	}
+
+	// ----------------------------------------------------------------------
+	// PUBLIC METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Connects a client and a server session.
+	 *
+	 * @param transport
+	 *            LOOPBACK for a TCP connection, PIPE for in-memory pipes
+	 * @param binary
+	 *            true for binary framing, false for text
+	 * @param features
+	 *            comma-separated features both ends agree on, may be empty
+	 * @return the connected pair
+	 */
+	static Link open(final String transport, final boolean binary,
+			final String features) throws IOException {
+		final File clientBase = Files.createTempDirectory("secftp-client").toFile();
+		final File serverBase = Files.createTempDirectory("secftp-server").toFile();
+		final Link link;
+
+		if (transport.equals(LOOPBACK)) {
+			try (ServerSocket listener = new ServerSocket(0, 1,
+					InetAddress.getLoopbackAddress())) {
+				final Socket clientSocket = new Socket(listener.getInetAddress(),
+						listener.getLocalPort());
+				final Socket serverSocket = listener.accept();
+				link = new Link(clientBase, serverBase,
+						new Socket[] { clientSocket, serverSocket });
+				link.client.attach(clientSocket);
+				link.server.attach(serverSocket);
+			}
+		} else if (transport.equals(PIPE)) {
+			final Pipe up = Pipe.open();
+			final Pipe down = Pipe.open();
+			link = new Link(clientBase, serverBase, new Socket[0]);
+			link.client.attach(Channels.newInputStream(down.source()),
+					Channels.newOutputStream(up.sink()));
+			link.server.attach(Channels.newInputStream(up.source()),
+					Channels.newOutputStream(down.sink()));
+		} else {
+			throw new IllegalArgumentException("Unknown transport " + transport);
+		}
+
+		final Set<String> agreed = new HashSet<>();
+		for (final String feature : features.split(",")) {
+			if (!feature.isBlank()) {
+				agreed.add(feature.trim());
+			}
+		}
+		link.client.negotiate(binary, agreed);
+		link.server.negotiate(binary, agreed);
+		return link;
+	}
+
+	/**
+	 * Runs a step on the server session over and over on a thread of its own,
+	 * until the link is closed.
+	 */
+	void serve(final Step step) {
+		peer = new Thread(() -> {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					step.run(server);
+				}
+			} catch (IOException ioe) {
+				// the link was closed under the step
+			}
+		}, "secftp-peer");
+		peer.setDaemon(true);
+		peer.start();
+	}
+
+	/**
+	 * Writes a file of pseudo-random bytes that don't compress.
+	 *
+	 * @return the file
+	 */
+	static File randomFile(final File base, final String name, final long size)
+			throws IOException {
+		final File file = new File(base, name);
+		final byte[] block = new byte[1024 * 1024];
+		final Random random = new Random(size);
+		try (OutputStream out = Files.newOutputStream(file.toPath())) {
+			for (long written = 0; written < size; written += block.length) {
+				random.nextBytes(block);
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Closes both ends and deletes the scratch directories.
+	 */
+	void close() throws IOException {
+		if (peer != null) {
+			peer.interrupt();
+		}
+		client.close();
+		server.close();
+		for (final Socket socket : sockets) {
+			socket.close();
+		}
+		for (final File base : Arrays.asList(clientBase, serverBase)) {
+			try (Stream<Path> paths = Files.walk(base.toPath())) {
+				paths.sorted(Comparator.reverseOrder()).map(Path::toFile)
+						.forEach(File::delete);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trips of short control messages, as in the command/reply exchange:
+ * sendMessage and receiveMessage on both ends, framed by sendData and
+ * receiveData.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+	@Param({ Link.LOOPBACK, Link.PIPE })
+	public String transport;
+
+	@Param({ "binary", "text" })
+	public String framing;
+
+	@Param({ "get report-2007-01-23.txt 0 -1" })
+	public String message;
+
+	private Link link;
+
+	@Setup(Level.Trial)
+	public void connect() throws IOException {
+		link = Link.open(transport, framing.equals("binary"), "");
+		link.serve(server -> server.sendMessage(server.receiveMessage()));
+	}
+
+	@TearDown(Level.Trial)
+	public void disconnect() throws IOException {
+		link.close();
+	}
+
+	@Benchmark
+	public String roundTrip() throws IOException {
+		link.client.sendMessage(message);
+		return link.client.receiveMessage();
+	}
+
+}
@@ -0,0 +1,49 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checksums are only remembered for the version of a file that was sent.
+ */
+public class ChecksumCacheTest {
+	@TempDir
+	Path fileBase;
+
+	@Test
+	public void remembersUnchangedFile() throws IOException {
+		final File file = write("same", new byte[100]);
+		final ChecksumCache cache = new ChecksumCache();
+		cache.put(file, file.lastModified(), file.length(), 42);
+		assertEquals(42, cache.get(file));
+	}
+
+	/* A file replaced while it was being sent keeps no stale checksum */
+	@Test
+	public void ignoresFileReplacedDuringSend() throws IOException {
+		final File file = write("replaced", new byte[100]);
+		final long modified = file.lastModified();
+		final long size = file.length();
+
+		Files.write(file.toPath(), new byte[200]);
+		file.setLastModified(modified + 1000);
+
+		final ChecksumCache cache = new ChecksumCache();
+		cache.put(file, modified, size, 42);
+		assertNull(cache.get(file));
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	private File write(final String name, final byte[] data) throws IOException {
+		return Files.write(fileBase.resolve(name), data).toFile();
+	}
+}
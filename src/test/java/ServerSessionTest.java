@@ -0,0 +1,103 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Exchanges with a server session, driven over a loopback connection in the
+ * session's default text framing.
+ */
+public class ServerSessionTest {
+	@TempDir
+	Path fileBase;
+
+	private Socket client;
+	private ServerSession session;
+	private OutputStream out;
+	private BufferedReader in;
+
+	@BeforeEach
+	public void connect() throws IOException {
+		ChunkStore.configure(false);
+		try (ServerSocket listener = new ServerSocket(0, 1,
+				InetAddress.getLoopbackAddress())) {
+			client = new Socket(listener.getInetAddress(), listener.getLocalPort());
+			session = new ServerSession(listener.accept(), fileBase.toString());
+		}
+		out = client.getOutputStream();
+		in = new BufferedReader(new InputStreamReader(client.getInputStream(),
+				StandardCharsets.US_ASCII));
+	}
+
+	@AfterEach
+	public void disconnect() throws IOException {
+		session.handleExit();
+		client.close();
+	}
+
+	/* A cput to a server without a chunk store is refused, not crashed on */
+	@Test
+	public void cputWithoutChunkStore() throws IOException {
+		final File file = fileBase.resolve("source").toFile();
+		final byte[] data = new byte[64 * 1024];
+		new Random(1).nextBytes(data);
+		Files.write(file.toPath(), data);
+		sendFrame(ChunkStore.describe(ChunkStore.split(file)));
+
+		session.processCommand(CommandLine.of("cput copy"));
+
+		assertEquals(Integer.BYTES, readInt());
+		int wanted = 0;
+		for (int i = 0; i < Integer.BYTES; i++) {
+			wanted = wanted << 8 | readInt() & 0xff;
+		}
+		assertEquals(FTPApplication.ERROR, wanted);
+		assertEquals(FTPApplication.PUT_FAILED, readMessage());
+		assertFalse(fileBase.resolve("copy").toFile().exists());
+	}
+
+	// ----------------------------------------------------------------------
+	// PRIVATE METHODS
+	// ----------------------------------------------------------------------
+
+	/**
+	 * Sends a frame as a length line followed by one line per byte.
+	 */
+	private void sendFrame(final byte[] frame) throws IOException {
+		final StringBuilder lines = new StringBuilder().append(frame.length)
+				.append('\n');
+		for (final byte b : frame) {
+			lines.append(b).append('\n');
+		}
+		out.write(lines.toString().getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+
+	private int readInt() throws IOException {
+		return Integer.parseInt(in.readLine().trim());
+	}
+
+	private String readMessage() throws IOException {
+		final byte[] bytes = new byte[readInt()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) readInt();
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}